@@ -0,0 +1,345 @@
+/* This file measures the Query transactions against a generated Flights database. By default it runs on an
+ * embedded in-memory database, so it needs no server and no network. Each benchmark runs once with one thread
+ * and once with --threads threads, and reports throughput and latency percentiles per transaction.
+ *
+ * Needs Java 21 or later, since Query runs asynchronous transactions on virtual threads. The embedded
+ * database needs the H2 driver (Maven com.h2database:h2, 2.x) on the class path:
+ *   java -cp classes:h2-2.2.224.jar flightapp.FlightBenchmark
+ * Query adapts its SQL Server statements to H2, see Query.StatementCache.portable.
+ *
+ * Usage: java flightapp.FlightBenchmark [options]
+ *   --url <jdbc url>       database to run on (default: embedded H2 in SQL Server mode)
+ *   --schema <file>        schema script (default: Flights DB Create Tables.sql)
+ *   --cities <n>           cities in the generated dataset (default 40)
+ *   --days <n>             days of flights (default 28)
+ *   --flights <n>          flights per day (default 2000)
+ *   --users <n>            customers created for booking benchmarks (default 64)
+ *   --threads <n>          threads of the multi-threaded runs (default: available processors)
+ *   --warmup <seconds>     warm-up time per run, not measured (default 5)
+ *   --seconds <seconds>    measured time per run (default 15)
+ *   --index                answer searches from the in-memory flight index
+ *   --snapshot <file>      with --index, build the index from this flight snapshot, writing it first if missing
+ */
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Throughput and latency benchmark for the Query transactions
+ */
+public class FlightBenchmark {
+  private static final String DEFAULT_URL = "jdbc:h2:mem:flights;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+  private Query query;
+  private FlightDataset dataset;
+  private int users;
+  private long warmupNanos;
+  private long measureNanos;
+
+  // Numbers the booking runs, each with customers of its own
+  private AtomicInteger bookingRuns = new AtomicInteger();
+
+  // Length of the measured interval of the last run, shorter if the workload ran out
+  private long lastMeasuredNanos;
+
+  public FlightBenchmark(Query query, FlightDataset dataset, int users, int warmupSeconds, int seconds) {
+    this.query = query;
+    this.dataset = dataset;
+    this.users = users;
+    this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+    this.measureNanos = TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  public static void main(String[] args) throws Exception {
+    HashMap<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--index")) {
+        options.put(args[i], "true");
+      } else if (i + 1 < args.length) {
+        options.put(args[i], args[++i]);
+      }
+    }
+    String url = options.getOrDefault("--url", DEFAULT_URL);
+    int threads = Integer.parseInt(options.getOrDefault("--threads", "" + Runtime.getRuntime().availableProcessors()));
+    int users = Integer.parseInt(options.getOrDefault("--users", "64"));
+    FlightDataset dataset = new FlightDataset(42,
+        Integer.parseInt(options.getOrDefault("--cities", "40")),
+        Integer.parseInt(options.getOrDefault("--days", "28")),
+        Integer.parseInt(options.getOrDefault("--flights", "2000")));
+
+    Connection admin = DriverManager.getConnection(url);
+    FlightDataset.createSchema(admin, new File(options.getOrDefault("--schema", "Flights DB Create Tables.sql")));
+    long start = System.nanoTime();
+    dataset.populate(admin);
+    System.out.println("Generated " + dataset.getFlights() + " flights in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+    Query query = new Query(url, new Properties(), threads * 2);
+    if (options.containsKey("--index")) {
+      start = System.nanoTime();
+      if (options.containsKey("--snapshot")) {
+        File snapshot = new File(options.get("--snapshot"));
+        if (!snapshot.exists()) {
+          FlightSnapshot.export(admin, snapshot);
+        }
+        start = System.nanoTime();
+        query.loadFlightIndex(FlightSnapshot.open(snapshot));
+      } else {
+        query.loadFlightIndex();
+      }
+      System.out.println("Loaded flight index in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+    createCustomers(query, "user", users);
+
+    FlightBenchmark benchmark = new FlightBenchmark(query, dataset, users,
+        Integer.parseInt(options.getOrDefault("--warmup", "5")),
+        Integer.parseInt(options.getOrDefault("--seconds", "15")));
+    try {
+      for (int t : new int[] {1, threads}) {
+        benchmark.report("search", t, benchmark.run(t, benchmark.new SearchWorkload()));
+        benchmark.report("reservations", t, benchmark.run(t, benchmark.new ReservationsWorkload()));
+        benchmark.report("booking", t, benchmark.run(t, benchmark.new BookingWorkload()));
+      }
+    } finally {
+      query.close();
+      admin.close();
+    }
+  }
+
+  private static void createCustomers(Query query, String prefix, int users) {
+    for (int u = 0; u < users; u++) {
+      String result = query.transaction_createCustomer(query.openSession(), prefix + u, "password", 1000000);
+      if (!result.startsWith("Created")) {
+        throw new IllegalStateException("Cannot create customer " + prefix + u + ": " + result.trim());
+      }
+    }
+  }
+
+  /**
+   * One kind of benchmark iteration. Each thread gets its own Worker with a session.
+   */
+  interface Workload {
+    /**
+     * Runs one iteration, recording the transactions it measures. Returns false when the
+     * workload has nothing left to do.
+     */
+    boolean iterate(Worker w) throws Exception;
+  }
+
+  /**
+   * A search between two random cities on a random day, direct and one-stop.
+   */
+  class SearchWorkload implements Workload {
+    public boolean iterate(Worker w) {
+      int origin = w.random.nextInt(dataset.getCities());
+      int dest = (origin + 1 + w.random.nextInt(dataset.getCities() - 1)) % dataset.getCities();
+      int day = 1 + w.random.nextInt(dataset.getDays());
+      long t0 = System.nanoTime();
+      String result = query.transaction_search(w.session, dataset.city(origin), dataset.city(dest), false, day, 10);
+      w.record("search", t0, !result.equals(Query.BUSY) && !result.startsWith("Failed"));
+      return true;
+    }
+  }
+
+  /**
+   * The reservation listing of one customer.
+   */
+  class ReservationsWorkload implements Workload {
+    public boolean iterate(Worker w) {
+      w.login();
+      long t0 = System.nanoTime();
+      String result = query.transaction_reservations(w.session);
+      w.record("reservations", t0, result.startsWith("Reservation ") || result.equals("No reservations found\n"));
+      return true;
+    }
+  }
+
+  /**
+   * Book, pay and cancel one itinerary for the next free (customer, day) slot. Cancelled
+   * reservations still count for the same-day rule, so each slot is used once and the
+   * workload ends when every slot is taken. Each workload creates its own customers, so
+   * every run starts with all slots free.
+   */
+  class BookingWorkload implements Workload {
+    private final String prefix = "booker" + bookingRuns.incrementAndGet() + "_";
+    // Next (customer, day) slot; every slot books at most once
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    BookingWorkload() {
+      createCustomers(query, prefix, users);
+    }
+
+    public boolean iterate(Worker w) {
+      int slot = nextSlot.getAndIncrement();
+      if (slot >= users * dataset.getDays()) {
+        return false;
+      }
+      w.loginAs(prefix + (slot / dataset.getDays()));
+      int day = 1 + slot % dataset.getDays();
+      int origin = w.random.nextInt(dataset.getCities());
+      int dest = (origin + 1 + w.random.nextInt(dataset.getCities() - 1)) % dataset.getCities();
+      query.transaction_search(w.session, dataset.city(origin), dataset.city(dest), false, day, 5);
+
+      long t0 = System.nanoTime();
+      String booked = query.transaction_book(w.session, 0);
+      w.record("book", t0, booked.startsWith("Booked"));
+      if (!booked.startsWith("Booked")) {
+        return true;
+      }
+      int rid = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+      t0 = System.nanoTime();
+      w.record("pay", t0, query.transaction_pay(w.session, rid).startsWith("Paid"));
+      t0 = System.nanoTime();
+      w.record("cancel", t0, query.transaction_cancel(w.session, rid).startsWith("Canceled"));
+      return true;
+    }
+  }
+
+  /**
+   * State of one benchmark thread.
+   */
+  class Worker {
+    Random random;
+    Query.Session session = query.openSession();
+    String user = null;
+    boolean measuring = false;
+    HashMap<String, Recorder> recorders = new HashMap<String, Recorder>();
+
+    Worker(long seed) {
+      random = new Random(seed);
+    }
+
+    void login() {
+      if (user == null) {
+        loginAs("user" + random.nextInt(users));
+      }
+    }
+
+    void loginAs(String name) {
+      if (!name.equals(user)) {
+        session = query.openSession();
+        String result = query.transaction_login(session, name, "password");
+        if (!result.startsWith("Logged in")) {
+          throw new IllegalStateException("Cannot log in as " + name + ": " + result.trim());
+        }
+        user = name;
+      }
+    }
+
+    void record(String transaction, long startNanos, boolean ok) {
+      if (!measuring) {
+        return;
+      }
+      Recorder r = recorders.get(transaction);
+      if (r == null) {
+        r = new Recorder();
+        recorders.put(transaction, r);
+      }
+      r.add(System.nanoTime() - startNanos, ok);
+    }
+  }
+
+  /**
+   * Latencies of one transaction type, in nanoseconds.
+   */
+  static class Recorder {
+    long[] samples = new long[1024];
+    int count = 0;
+    int failures = 0;
+
+    void add(long nanos, boolean ok) {
+      if (count == samples.length) {
+        samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = nanos;
+      if (!ok) {
+        failures++;
+      }
+    }
+
+    void addAll(Recorder other) {
+      for (int i = 0; i < other.count; i++) {
+        add(other.samples[i], true);
+      }
+      failures += other.failures;
+    }
+
+    long percentile(double p) {
+      int i = (int) Math.ceil(p / 100.0 * count) - 1;
+      return samples[Math.max(0, Math.min(count - 1, i))];
+    }
+  }
+
+  /**
+   * Runs the workload on the given number of threads: warm-up first, then the measured
+   * interval. Returns the latencies recorded by all threads, merged per transaction.
+   */
+  public Map<String, Recorder> run(int threads, final Workload workload) throws Exception {
+    final long warmupEnd = System.nanoTime() + warmupNanos;
+    final long end = warmupEnd + measureNanos;
+    final AtomicLong measuredNanos = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayList<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+    for (int t = 0; t < threads; t++) {
+      final long seed = 1000 + t;
+      futures.add(pool.submit(new Callable<Worker>() {
+        public Worker call() throws Exception {
+          Worker w = new Worker(seed);
+          long now = System.nanoTime();
+          while (now < end) {
+            if (!w.measuring && now >= warmupEnd) {
+              w.measuring = true;
+            }
+            if (!workload.iterate(w)) {
+              break;
+            }
+            now = System.nanoTime();
+          }
+          measuredNanos.accumulateAndGet(Math.max(0, Math.min(now, end) - warmupEnd), Math::max);
+          return w;
+        }
+      }));
+    }
+    TreeMap<String, Recorder> merged = new TreeMap<String, Recorder>();
+    try {
+      for (Future<Worker> f : futures) {
+        for (Map.Entry<String, Recorder> e : f.get().recorders.entrySet()) {
+          Recorder r = merged.get(e.getKey());
+          if (r == null) {
+            r = new Recorder();
+            merged.put(e.getKey(), r);
+          }
+          r.addAll(e.getValue());
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    for (Recorder r : merged.values()) {
+      Arrays.sort(r.samples, 0, r.count);
+    }
+    lastMeasuredNanos = measuredNanos.get();
+    return merged;
+  }
+
+  private void report(String benchmark, int threads, Map<String, Recorder> results) {
+    double seconds = lastMeasuredNanos / 1e9;
+    System.out.println();
+    System.out.println(benchmark + ", " + threads + " thread(s), " + String.format("%.1f", seconds) + " s measured");
+    System.out.println(String.format("  %-13s %10s %9s %9s %9s %9s %9s %9s %8s", "transaction", "ops/s",
+        "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "count", "failed"));
+    for (Map.Entry<String, Recorder> e : results.entrySet()) {
+      Recorder r = e.getValue();
+      if (r.count == 0) {
+        continue;
+      }
+      System.out.println(String.format("  %-13s %10.1f %9d %9d %9d %9d %9d %9d %8d", e.getKey(),
+          seconds > 0 ? r.count / seconds : 0.0, r.percentile(50) / 1000, r.percentile(90) / 1000,
+          r.percentile(99) / 1000, r.percentile(99.9) / 1000, r.samples[r.count - 1] / 1000, r.count, r.failures));
+    }
+  }
+}
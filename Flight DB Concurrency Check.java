@@ -0,0 +1,333 @@
+/* This file checks that the writes of Flight DB Java.java stay consistent when they race. It generates a Flights
+ * database and has two sessions of the same user pay or cancel the same reservation at once, then checks the
+ * user's balance against the final state of the reservation. It also sends group commit a write that fails,
+ * checks that the write gets its failure result and that later writes still commit, and finally checks that
+ * the booked seats of every flight match its live reservations. By default it runs on an embedded in-memory
+ * database.
+ *
+ * Needs Java 21 or later, for the virtual threads of Query. The embedded database needs the H2 driver
+ * (Maven com.h2database:h2, 2.x) on the class path:
+ *   java -cp classes:h2-2.2.224.jar flightapp.FlightConcurrencyCheck
+ *
+ * Usage: java flightapp.FlightConcurrencyCheck [options]
+ *   --url <jdbc url>       database to run on (default: embedded H2 in SQL Server mode)
+ *   --schema <file>        schema script (default: Flights DB Create Tables.sql)
+ *   --cities <n>           cities in the generated dataset (default 10)
+ *   --days <n>             days of flights (default 28)
+ *   --flights <n>          flights per day (default 200)
+ *   --rounds <n>           races per check (default 10)
+ */
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Consistency of balances, reservations and seat counts under concurrent writes
+ */
+public class FlightConcurrencyCheck {
+  private static final String DEFAULT_URL = "jdbc:h2:mem:flightconcurrency;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+  private static final String PASSWORD = "password";
+  private static final int BALANCE = 1000000;
+
+  private Connection conn;
+  private Query query;
+  private FlightDataset dataset;
+  private int rounds;
+  private int customers = 0;
+  private ExecutorService racers = Executors.newFixedThreadPool(2);
+
+  // One line per failed check
+  private ArrayList<String> failures = new ArrayList<String>();
+
+  /**
+   * Two sessions logged in as the same new customer, who holds one reservation.
+   */
+  class Race {
+    final String user;
+    final Query.Session first;
+    final Query.Session second;
+    final int rid;
+
+    Race(String user, Query.Session first, Query.Session second, int rid) {
+      this.user = user;
+      this.first = first;
+      this.second = second;
+      this.rid = rid;
+    }
+  }
+
+  public FlightConcurrencyCheck(Connection conn, Query query, FlightDataset dataset, int rounds) {
+    this.conn = conn;
+    this.query = query;
+    this.dataset = dataset;
+    this.rounds = rounds;
+  }
+
+  public static void main(String[] args) throws Exception {
+    HashMap<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      options.put(args[i], args[i + 1]);
+    }
+    String url = options.getOrDefault("--url", DEFAULT_URL);
+    FlightDataset dataset = new FlightDataset(42,
+        Integer.parseInt(options.getOrDefault("--cities", "10")),
+        Integer.parseInt(options.getOrDefault("--days", "28")),
+        Integer.parseInt(options.getOrDefault("--flights", "200")));
+    Connection conn = DriverManager.getConnection(url);
+    try {
+      FlightDataset.createSchema(conn, new File(options.getOrDefault("--schema", "Flights DB Create Tables.sql")));
+      dataset.populate(conn);
+      Query query = new Query(url, new Properties(), 4);
+      FlightConcurrencyCheck check = new FlightConcurrencyCheck(conn, query, dataset,
+          Integer.parseInt(options.getOrDefault("--rounds", "10")));
+      try {
+        check.run();
+      } finally {
+        check.racers.shutdown();
+        query.close();
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Runs every check and prints its outcome. Throws IllegalStateException if any failed.
+   */
+  public void run() throws Exception {
+    checkPayRace();
+    checkCancelRace();
+    checkPayCancelRace();
+    checkGroupCommitFailure();
+    checkSeats();
+    for (String failure : failures) {
+      System.out.println("FAILED " + failure);
+    }
+    if (!failures.isEmpty()) {
+      throw new IllegalStateException(failures.size() + " check(s) failed");
+    }
+    System.out.println("All checks passed");
+  }
+
+  /**
+   * Two payments of one reservation at once: one is paid, and the balance is charged once.
+   */
+  void checkPayRace() throws Exception {
+    for (int round = 0; round < rounds; round++) {
+      Race race = race(round);
+      String[] results = both(pay(race.first, race.rid), pay(race.second, race.rid));
+      int paid = count(results, "Paid");
+      expect(paid == 1, "pay race " + race.rid + ": " + paid + " payments went through");
+      expectBalance(race, "pay race");
+    }
+    System.out.println("pay race: " + rounds + " round(s)");
+  }
+
+  /**
+   * Two cancellations of one paid reservation at once: one cancels, the price is refunded once
+   * and the seats are given back once.
+   */
+  void checkCancelRace() throws Exception {
+    for (int round = 0; round < rounds; round++) {
+      Race race = race(rounds + round);
+      String paid = query.transaction_pay(race.first, race.rid);
+      expect(paid.startsWith("Paid"), "cancel race " + race.rid + ": payment failed: " + paid.trim());
+      String[] results = both(cancel(race.first, race.rid), cancel(race.second, race.rid));
+      int cancelled = count(results, "Canceled");
+      expect(cancelled == 1, "cancel race " + race.rid + ": " + cancelled + " cancellations went through");
+      expectBalance(race, "cancel race");
+    }
+    System.out.println("cancel race: " + rounds + " round(s)");
+  }
+
+  /**
+   * A payment and a cancellation of one reservation at once: whichever way it ends, the
+   * balance is charged only if the reservation ends paid and not cancelled.
+   */
+  void checkPayCancelRace() throws Exception {
+    for (int round = 0; round < rounds; round++) {
+      Race race = race(2 * rounds + round);
+      both(pay(race.first, race.rid), cancel(race.second, race.rid));
+      expectBalance(race, "pay/cancel race");
+    }
+    System.out.println("pay/cancel race: " + rounds + " round(s)");
+  }
+
+  /**
+   * A group commit write that fails, once outside JDBC and once in SQL, gets its failed()
+   * result, and the committer goes on to commit a booking after it.
+   */
+  void checkGroupCommitFailure() throws Exception {
+    query.enableGroupCommit(8, 1000);
+    try {
+      Query.GroupCommit group = query.groupCommit;
+      Query.Shard shard = query.shardOfDay(1);
+      String thrown = group.submit(query.new GroupWrite(shard) {
+        String run(Query.PooledConnection pc) {
+          throw new IllegalStateException("write failed outside JDBC");
+        }
+
+        String failed() {
+          return "runtime failure\n";
+        }
+      });
+      expect(thrown.equals("runtime failure\n"), "group commit: a throwing write returned " + thrown.trim());
+      String rejected = group.submit(query.new GroupWrite(shard) {
+        String run(Query.PooledConnection pc) throws SQLException {
+          pc.statements.get("check.missing_table", "SELECT x FROM NoSuchTable").executeQuery();
+          return "ran\n";
+        }
+
+        String failed() {
+          return "sql failure\n";
+        }
+      });
+      expect(rejected.equals("sql failure\n"), "group commit: a failing statement returned " + rejected.trim());
+      expect(query.getGroupCommitFailures() == 2, "group commit: " + query.getGroupCommitFailures()
+          + " failures counted, expected 2");
+      expect(query.getGroupCommitLastFailure() != null, "group commit: no last failure kept");
+
+      Race race = race(3 * rounds);
+      expect(race.rid > 0, "group commit: booking after the failures did not commit");
+      System.out.println("group commit failure: last failure " + query.getGroupCommitLastFailure());
+    } finally {
+      query.disableGroupCommit();
+    }
+  }
+
+  /**
+   * The booked seats of every flight equal its legs in reservations that are not cancelled.
+   */
+  void checkSeats() throws SQLException {
+    String seats = "SELECT S.fid, S.booked,"
+        + " (SELECT COUNT(*) FROM Reservations R WHERE R.cancelled = 0 AND (R.fid1 = S.fid OR R.fid2 = S.fid))"
+        + " + (SELECT COUNT(*) FROM ReservationLegs L JOIN Reservations R ON L.rid = R.rid"
+        + " WHERE R.cancelled = 0 AND L.fid = S.fid) FROM SeatInventory S";
+    int flights = 0;
+    Statement stm = conn.createStatement();
+    try {
+      ResultSet rs = stm.executeQuery(seats);
+      while (rs.next()) {
+        expect(rs.getInt(2) == rs.getInt(3), "seats: flight " + rs.getInt(1) + " has " + rs.getInt(2)
+            + " seats booked for " + rs.getInt(3) + " live reservation legs");
+        flights++;
+      }
+      rs.close();
+    } finally {
+      stm.close();
+    }
+    System.out.println("seat counts: " + flights + " flights");
+  }
+
+  /**
+   * Creates a customer, logs two sessions in and books a direct flight on a day picked by
+   * round. Returns the race with rid -1 if no flight could be booked.
+   */
+  Race race(int round) {
+    String user = "racer" + customers++;
+    Query.Session first = query.openSession();
+    Query.Session second = query.openSession();
+    query.transaction_createCustomer(first, user, PASSWORD, BALANCE);
+    query.transaction_login(first, user, PASSWORD);
+    query.transaction_login(second, user, PASSWORD);
+    int day = 1 + round % dataset.getDays();
+    for (int dest = 1; dest < dataset.getCities(); dest++) {
+      String found = query.transaction_search(first, dataset.city(0), dataset.city(dest), true, day, 5);
+      int itineraries = found.split("Itinerary ", -1).length - 1;
+      for (int i = 0; i < itineraries; i++) {
+        String booked = query.transaction_book(first, i);
+        if (booked.startsWith("Booked")) {
+          return new Race(user, first, second, Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim()));
+        }
+      }
+    }
+    return new Race(user, first, second, -1);
+  }
+
+  Callable<String> pay(final Query.Session session, final int rid) {
+    return new Callable<String>() {
+      public String call() {
+        return query.transaction_pay(session, rid);
+      }
+    };
+  }
+
+  Callable<String> cancel(final Query.Session session, final int rid) {
+    return new Callable<String>() {
+      public String call() {
+        return query.transaction_cancel(session, rid);
+      }
+    };
+  }
+
+  /**
+   * Runs a and b at the same time and returns their results.
+   */
+  String[] both(final Callable<String> a, final Callable<String> b) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    Future<String> first = racers.submit(new Callable<String>() {
+      public String call() throws Exception {
+        start.await();
+        return a.call();
+      }
+    });
+    Future<String> second = racers.submit(new Callable<String>() {
+      public String call() throws Exception {
+        start.await();
+        return b.call();
+      }
+    });
+    start.countDown();
+    return new String[] {first.get(), second.get()};
+  }
+
+  private int count(String[] results, String prefix) {
+    int n = 0;
+    for (String result : results) {
+      if (result.startsWith(prefix)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * The user's balance is the starting balance, less the price of the reservation if it is
+   * paid and not cancelled.
+   */
+  private void expectBalance(Race race, String check) throws SQLException {
+    if (race.rid < 0) {
+      failures.add(check + ": no flight left to book for " + race.user);
+      return;
+    }
+    String state = "SELECT R.paid, R.cancelled, U.balance, F1.price + COALESCE(F2.price, 0)"
+        + " + (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLegs L JOIN Flights F ON L.fid = F.fid WHERE L.rid = R.rid)"
+        + " FROM Reservations R JOIN Users U ON R.username = U.username JOIN Flights F1 ON R.fid1 = F1.fid"
+        + " LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid WHERE R.rid = ?";
+    PreparedStatement ps = conn.prepareStatement(state);
+    try {
+      ps.setInt(1, race.rid);
+      ResultSet rs = ps.executeQuery();
+      if (!rs.next()) {
+        failures.add(check + ": reservation " + race.rid + " not found");
+      } else {
+        boolean charged = rs.getInt(1) == 1 && rs.getInt(2) == 0;
+        int expected = BALANCE - (charged ? rs.getInt(4) : 0);
+        expect(rs.getInt(3) == expected, check + " " + race.rid + ": balance " + rs.getInt(3) + ", expected "
+            + expected + " with paid = " + rs.getInt(1) + " and cancelled = " + rs.getInt(2));
+      }
+      rs.close();
+    } finally {
+      ps.close();
+    }
+  }
+
+  private void expect(boolean ok, String failure) {
+    if (!ok) {
+      failures.add(failure);
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/* This file builds synthetic Flights databases for benchmarks and tools. It creates the tables defined in
+ * Flights DB Create Tables.sql on any JDBC database, including an embedded one, and fills them with a
+ * reproducible month of flights of configurable size.
+ */
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Generates a month of flights between a fixed set of cities
+ */
+public class FlightDataset {
+  private static final String[] CARRIERS = {"AA", "AS", "B6", "DL", "F9", "HA", "NK", "UA", "WN"};
+  private static final String[] WEEKDAYS = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+  private static final String[] MONTHS = {"January", "February", "March", "April", "May", "June", "July",
+      "August", "September", "October", "November", "December"};
+
+  // Month every generated flight belongs to
+  private static final int MONTH = 7;
+
+  private long seed;
+  private int cities;
+  private int days;
+  private int flightsPerDay;
+
+  public FlightDataset(long seed, int cities, int days, int flightsPerDay) {
+    this.seed = seed;
+    this.cities = cities;
+    this.days = days;
+    this.flightsPerDay = flightsPerDay;
+  }
+
+  public int getCities() {
+    return cities;
+  }
+
+  public int getDays() {
+    return days;
+  }
+
+  public int getFlights() {
+    return days * flightsPerDay;
+  }
+
+  /**
+   * Name of the i-th generated city.
+   */
+  public String city(int i) {
+    return String.format("City %03d", i);
+  }
+
+  /**
+   * Runs every CREATE TABLE statement of the schema script. The IF NOT EXISTS guards around
+   * them are T-SQL only, so the statements are cut out and run one by one, which also works on
+   * the embedded H2 database of the tools.
+   */
+  public static void createSchema(Connection conn, File script) throws IOException, SQLException {
+    String sql = new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8);
+    // comments may mention the statements too
+    sql = sql.replaceAll("(?s)/\\*.*?\\*/", " ");
+    String upper = sql.toUpperCase(Locale.ROOT);
+    Statement stm = conn.createStatement();
+    try {
+      int at = 0;
+      while ((at = upper.indexOf("CREATE TABLE", at)) >= 0) {
+        int depth = 0;
+        int end = sql.indexOf('(', at);
+        do {
+          char c = sql.charAt(end++);
+          if (c == '(') {
+            depth++;
+          } else if (c == ')') {
+            depth--;
+          }
+        } while (depth > 0);
+        stm.executeUpdate(sql.substring(at, end));
+        at = end;
+      }
+    } finally {
+      stm.close();
+    }
+  }
+
+  /**
+   * Inserts the reference tables, the flights and their SeatInventory rows.
+   */
+  public void populate(Connection conn) throws SQLException {
+    populate(conn, 0, 1);
+  }
+
+  /**
+   * Fills database shard of shards for Query(String[] urls, ...): the reference tables, and
+   * the flights of the days the shard owns, day d going to shard (d - 1) % shards. Flights
+   * keep the fids and values they have in the unsharded dataset.
+   */
+  public void populate(Connection conn, int shard, int shards) throws SQLException {
+    Random random = new Random(seed);
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try {
+      PreparedStatement ps = conn.prepareStatement("INSERT INTO Carriers(cid, name) VALUES(?, ?)");
+      for (String cid : CARRIERS) {
+        ps.setString(1, cid);
+        ps.setString(2, cid + " Airlines");
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      ps.close();
+      ps = conn.prepareStatement("INSERT INTO Months(mid, [month]) VALUES(?, ?)");
+      for (int i = 0; i < MONTHS.length; i++) {
+        ps.setInt(1, i + 1);
+        ps.setString(2, MONTHS[i]);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      ps.close();
+      ps = conn.prepareStatement("INSERT INTO Weekdays(did, day_of_week) VALUES(?, ?)");
+      for (int i = 0; i < WEEKDAYS.length; i++) {
+        ps.setInt(1, i + 1);
+        ps.setString(2, WEEKDAYS[i]);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      ps.close();
+
+      PreparedStatement flights = conn.prepareStatement("INSERT INTO Flights(fid, month_id, day_of_month,"
+          + " day_of_week_id, carrier_id, flight_num, origin_city, origin_state, dest_city, dest_state,"
+          + " departure_delay, taxi_out, arrival_delay, canceled, actual_time, distance, capacity, price)"
+          + " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      PreparedStatement seats = conn.prepareStatement("INSERT INTO SeatInventory(fid, capacity, booked) VALUES(?, ?, 0)");
+      int fid = 0;
+      for (int day = 1; day <= days; day++) {
+        for (int i = 0; i < flightsPerDay; i++) {
+          fid++;
+          int origin = random.nextInt(cities);
+          int dest = (origin + 1 + random.nextInt(cities - 1)) % cities;
+          int time = 30 + random.nextInt(570);
+          int capacity = random.nextInt(20) == 0 ? 0 : 1 + random.nextInt(20);
+          String carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+          int flightNum = 100 + random.nextInt(9000);
+          int departureDelay = random.nextInt(60);
+          int taxiOut = 5 + random.nextInt(25);
+          int arrivalDelay = random.nextInt(60);
+          int canceled = random.nextInt(50) == 0 ? 1 : 0;
+          int price = 100 + random.nextInt(900);
+          // every flight is drawn, so the shards' flights match the unsharded dataset
+          if ((day - 1) % shards != shard) {
+            continue;
+          }
+          flights.setInt(1, fid);
+          flights.setInt(2, MONTH);
+          flights.setInt(3, day);
+          flights.setInt(4, (day - 1) % 7 + 1);
+          flights.setString(5, carrier);
+          flights.setInt(6, flightNum);
+          flights.setString(7, city(origin));
+          flights.setString(8, "State");
+          flights.setString(9, city(dest));
+          flights.setString(10, "State");
+          flights.setInt(11, departureDelay);
+          flights.setInt(12, taxiOut);
+          flights.setInt(13, arrivalDelay);
+          flights.setInt(14, canceled);
+          flights.setInt(15, time);
+          flights.setInt(16, time * 8);
+          flights.setInt(17, capacity);
+          flights.setInt(18, price);
+          flights.addBatch();
+          seats.setInt(1, fid);
+          seats.setInt(2, capacity);
+          seats.addBatch();
+          if (fid % 1000 == 0) {
+            flights.executeBatch();
+            seats.executeBatch();
+          }
+        }
+      }
+      flights.executeBatch();
+      seats.executeBatch();
+      flights.close();
+      seats.close();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+}
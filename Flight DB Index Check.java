@@ -0,0 +1,290 @@
+/* This file checks what the migrations of Flight DB Migrations.java do for the queries of Flight DB Java.java.
+ * It generates a Flights database with users and reservations, then runs the hot queries of transaction_search,
+ * transaction_book and transaction_reservations before and after migrating, and prints their query plans and
+ * latencies side by side. By default it runs on an embedded in-memory database, which needs the H2 driver
+ * (Maven com.h2database:h2, 1.4.200 or 2.x) on the class path:
+ *   java -cp classes:h2-2.2.224.jar flightapp.FlightIndexCheck
+ *
+ * Usage: java flightapp.FlightIndexCheck [options]
+ *   --url <jdbc url>       database to run on (default: embedded H2 in SQL Server mode)
+ *   --schema <file>        schema script (default: Flights DB Create Tables.sql)
+ *   --cities <n>           cities in the generated dataset (default 40)
+ *   --days <n>             days of flights (default 28)
+ *   --flights <n>          flights per day (default 2000)
+ *   --users <n>            customers with reservations (default 2000)
+ *   --runs <n>             timed executions per query and schema version (default 500)
+ */
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Query plans and latencies of the Query access paths, before and after the index migrations
+ */
+public class FlightIndexCheck {
+  private static final String DEFAULT_URL = "jdbc:h2:mem:flightcheck;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+  private Connection conn;
+  private FlightDataset dataset;
+  private int users;
+  private int runs;
+  private boolean sqlServer;
+
+  /**
+   * One query as Query runs it, with a generator of realistic parameters.
+   */
+  abstract class Probe {
+    final String name;
+    final String sql;
+
+    Probe(String name, String sql) {
+      this.name = name;
+      this.sql = sql;
+    }
+
+    abstract Object[] params(Random random);
+  }
+
+  public FlightIndexCheck(Connection conn, FlightDataset dataset, int users, int runs) throws SQLException {
+    this.conn = conn;
+    this.dataset = dataset;
+    this.users = users;
+    this.runs = runs;
+    this.sqlServer = conn.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT).contains("sql server");
+  }
+
+  public static void main(String[] args) throws Exception {
+    HashMap<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      options.put(args[i], args[i + 1]);
+    }
+    FlightDataset dataset = new FlightDataset(42,
+        Integer.parseInt(options.getOrDefault("--cities", "40")),
+        Integer.parseInt(options.getOrDefault("--days", "28")),
+        Integer.parseInt(options.getOrDefault("--flights", "2000")));
+    Connection conn = DriverManager.getConnection(options.getOrDefault("--url", DEFAULT_URL));
+    try {
+      FlightDataset.createSchema(conn, new File(options.getOrDefault("--schema", "Flights DB Create Tables.sql")));
+      dataset.populate(conn);
+      FlightIndexCheck check = new FlightIndexCheck(conn, dataset,
+          Integer.parseInt(options.getOrDefault("--users", "2000")),
+          Integer.parseInt(options.getOrDefault("--runs", "500")));
+      check.addReservations();
+      check.run();
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Creates the users and gives each a reservation on a few random days, so the
+   * Reservations queries have rows to search through.
+   */
+  public void addReservations() throws SQLException {
+    Random random = new Random(7);
+    int perDay = dataset.getFlights() / dataset.getDays();
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try {
+      PreparedStatement user = conn.prepareStatement("INSERT INTO Users(username, password, balance) VALUES(?, ?, 1000000)");
+      PreparedStatement reserve = conn.prepareStatement(
+          "INSERT INTO Reservations(username, paid, cancelled, fid1, fid2) VALUES(?, ?, ?, ?, NULL)");
+      for (int u = 0; u < users; u++) {
+        user.setString(1, "user" + u);
+        user.setBytes(2, new byte[16]);
+        user.addBatch();
+        for (int r = 0; r < 5; r++) {
+          int day = random.nextInt(dataset.getDays());
+          reserve.setString(1, "user" + u);
+          reserve.setInt(2, random.nextInt(2));
+          reserve.setInt(3, random.nextInt(10) == 0 ? 1 : 0);
+          reserve.setInt(4, day * perDay + 1 + random.nextInt(perDay));
+          reserve.addBatch();
+        }
+        if (u % 500 == 499) {
+          user.executeBatch();
+          reserve.executeBatch();
+        }
+      }
+      user.executeBatch();
+      reserve.executeBatch();
+      user.close();
+      reserve.close();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * The queries of Query that the migrations target, with the SQL Query prepares.
+   */
+  List<Probe> probes() {
+    ArrayList<Probe> probes = new ArrayList<Probe>();
+    probes.add(new Probe("search.direct",
+        "SELECT TOP (?) carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
+        + "fid, day_of_month FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0"
+        + " ORDER BY actual_time ASC, fid ASC") {
+      Object[] params(Random random) {
+        int origin = random.nextInt(dataset.getCities());
+        int dest = (origin + 1 + random.nextInt(dataset.getCities() - 1)) % dataset.getCities();
+        return new Object[] {20, dataset.city(origin), dataset.city(dest), 1 + random.nextInt(dataset.getDays())};
+      }
+    });
+    probes.add(new Probe("search.indirect",
+        "SELECT TOP (?) F1.fid, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city,"
+        + " F1.actual_time, F1.capacity, F1.price, F2.fid, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time,"
+        + " F2.capacity, F2.price, (F1.actual_time + F2.actual_time) AS total_duration FROM FLIGHTS F1 JOIN"
+        + " FLIGHTS F2 ON F1.day_of_month = F2.day_of_month WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ?"
+        + " AND F1.canceled = 0 AND F2.canceled = 0 AND F1.day_of_month = ? ORDER BY total_duration ASC, F1.fid ASC, F2.fid ASC") {
+      Object[] params(Random random) {
+        int origin = random.nextInt(dataset.getCities());
+        int dest = (origin + 1 + random.nextInt(dataset.getCities() - 1)) % dataset.getCities();
+        return new Object[] {20, dataset.city(origin), dataset.city(dest), 1 + random.nextInt(dataset.getDays())};
+      }
+    });
+    probes.add(new Probe("book.check_day",
+        "SELECT F1.fid FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT OUTER JOIN Flights F2 on R.fid1 = F2.fid"
+        + " WHERE R.username = ? AND F1.day_of_month = ?") {
+      Object[] params(Random random) {
+        return new Object[] {"user" + random.nextInt(users), 1 + random.nextInt(dataset.getDays())};
+      }
+    });
+    probes.add(new Probe("reservations.list",
+        "SELECT F1.fid, F1.day_of_month, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city, F1.actual_time, F1.capacity, F1.price,"
+        + " F2.fid, F2.day_of_month, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time, F2.capacity, F2.price,"
+        + " R.rid, R.paid, (SELECT COUNT(*) FROM ReservationLegs L WHERE L.rid = R.rid)"
+        + " FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid"
+        + " WHERE R.username = ? AND R.cancelled = 0 ORDER BY R.rid") {
+      Object[] params(Random random) {
+        return new Object[] {"user" + random.nextInt(users)};
+      }
+    });
+    return probes;
+  }
+
+  /**
+   * Measures every probe without the migrated indexes, migrates to the latest version,
+   * measures again and prints both.
+   */
+  public void run() throws SQLException {
+    FlightMigrations migrations = new FlightMigrations(conn);
+    List<Probe> probes = probes();
+
+    migrations.migrateTo(0);
+    LinkedHashMap<String, long[]> before = new LinkedHashMap<String, long[]>();
+    LinkedHashMap<String, String> plansBefore = new LinkedHashMap<String, String>();
+    for (Probe p : probes) {
+      plansBefore.put(p.name, plan(p));
+      before.put(p.name, time(p));
+    }
+
+    migrations.migrateTo(FlightMigrations.latestVersion());
+    System.out.println();
+    System.out.println(String.format("%-18s %12s %12s %12s %12s %8s", "query", "before p50", "before p95",
+        "after p50", "after p95", "speedup"));
+    for (Probe p : probes) {
+      long[] b = before.get(p.name);
+      long[] a = time(p);
+      System.out.println(String.format("%-18s %10d us %10d us %10d us %10d us %7.1fx", p.name,
+          b[0], b[1], a[0], a[1], a[0] == 0 ? 0.0 : (double) b[0] / a[0]));
+    }
+    for (Probe p : probes) {
+      System.out.println();
+      System.out.println("== " + p.name + " before");
+      System.out.println(plansBefore.get(p.name));
+      System.out.println("== " + p.name + " after");
+      System.out.println(plan(p));
+    }
+  }
+
+  /**
+   * Runs the probe runs times with fresh parameters, after as many untimed runs to warm up.
+   * Returns the median and 95th percentile latency in microseconds.
+   */
+  long[] time(Probe p) throws SQLException {
+    Random random = new Random(11);
+    long[] samples = new long[runs];
+    PreparedStatement ps = conn.prepareStatement(p.sql);
+    try {
+      for (int i = -runs; i < runs; i++) {
+        Object[] params = p.params(random);
+        for (int j = 0; j < params.length; j++) {
+          ps.setObject(j + 1, params[j]);
+        }
+        long t0 = System.nanoTime();
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          // read every row, as Query does
+        }
+        rs.close();
+        if (i >= 0) {
+          samples[i] = System.nanoTime() - t0;
+        }
+      }
+    } finally {
+      ps.close();
+    }
+    Arrays.sort(samples);
+    return new long[] {TimeUnit.NANOSECONDS.toMicros(samples[runs / 2]),
+        TimeUnit.NANOSECONDS.toMicros(samples[Math.min(runs - 1, (int) (runs * 0.95))])};
+  }
+
+  /**
+   * The database's plan for the probe with one sample of parameters, as text. SQL Server
+   * gives its estimated plan through SHOWPLAN_TEXT; other databases through EXPLAIN.
+   */
+  String plan(Probe p) throws SQLException {
+    String sql = literal(p.sql, p.params(new Random(11)));
+    StringBuilder sb = new StringBuilder();
+    Statement stm = conn.createStatement();
+    try {
+      if (sqlServer) {
+        stm.execute("SET SHOWPLAN_TEXT ON");
+        boolean results = stm.execute(sql);
+        while (results || stm.getUpdateCount() != -1) {
+          if (results) {
+            appendRows(sb, stm.getResultSet());
+          }
+          results = stm.getMoreResults();
+        }
+        stm.execute("SET SHOWPLAN_TEXT OFF");
+      } else {
+        appendRows(sb, stm.executeQuery("EXPLAIN " + sql));
+      }
+    } finally {
+      stm.close();
+    }
+    return sb.toString();
+  }
+
+  private void appendRows(StringBuilder sb, ResultSet rs) throws SQLException {
+    while (rs.next()) {
+      sb.append(rs.getString(1)).append("\n");
+    }
+    rs.close();
+  }
+
+  // Plans are asked for without parameters, so the sample values are written into the SQL
+  private String literal(String sql, Object[] params) {
+    StringBuilder sb = new StringBuilder();
+    int p = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c != '?') {
+        sb.append(c);
+      } else if (params[p] instanceof String) {
+        sb.append('\'').append(((String) params[p++]).replace("'", "''")).append('\'');
+      } else {
+        sb.append(params[p++]);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -1,608 +1,4897 @@
-/* This file is written using Java Database Connectivity API which provides code for querying, inserting,
- * and updating relational databases. The code below creates functions used by the end user in a command-line interface
- * to interact with an database in SQL Server containing flight, reservation, and carrier information. This file is
- * only for demonstrative purposes.
- * 
- */
-package flightapp;
-
-import java.io.*;
-import java.sql.*;
-import java.util.*;
-import java.security.*;
-import java.security.spec.*;
-import javax.crypto.*;
-import javax.crypto.spec.*;
-
-/**
- * Runs queries against a back-end database
- */
-public class Query {
-  // DB Connection
-  private Connection conn;
-
-  boolean logged_in = false;
-  ArrayList<Itinerary> SortedList = new ArrayList<Itinerary>();
-  String logged_user = "";
-
-  /**
-   * Clear the data in any custom tables created.
-   */
-  public void clearTables() throws SQLException {
-	  String delete_resr = "TRUNCATE TABLE Reservations";
-	  String delete_user = "DELETE FROM Users";
-	  String reseed = "DBCC CHECKIDENT ('Reservations', RESEED, 1)";
-	  
-	  Statement stm1 = conn.createStatement();
-	  try {
-		  stm1.executeUpdate(delete_resr);
-		  stm1.executeUpdate(delete_user);
-		  stm1.executeUpdate(reseed);
-    } catch (Exception e) {
-      System.out.println("Failed to clear tables");
-    }
-  }
-
-  private void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
-  }
-
-  /**
-   * Takes a user's username and password and attempts to log the user in.
-   * If someone has already logged in, then returns "User already logged in" For all other
-   * errors, returns "Login failed". Otherwise, returns "Logged in as [username]".
-   */
-  public String transaction_login(String username, String password) {
-    String match = "SELECT username FROM Users WHERE username = ? AND password = ?";
-    String username_lower = username.toLowerCase();
-    
-  	try {
-  	  if (logged_in) {
-  		  return "User already logged in\n";
-  	  }
-  	  PreparedStatement login = conn.prepareStatement(match);
-      login.setString(1, username_lower);
-        
-      String salt_string = "1234";
-  	  // Specify the hash parameters
-  	  KeySpec spec = new PBEKeySpec(password.toCharArray(), salt_string.getBytes(), HASH_STRENGTH, KEY_LENGTH);
-  	
-  	  // Generate the hash
-  	  SecretKeyFactory factory = null;
-  	  factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-  	  byte[] password_hash = factory.generateSecret(spec).getEncoded();
-  	  
-  	  login.setBytes(2, password_hash);
-      ResultSet rs = login.executeQuery();
-      if (rs.next()) {
-    	  logged_in = true;
-    	  logged_user = username_lower;
-    	  return "Logged in as " + username + "\n";
-      }
-      } catch (Exception e){
-        return "Login failed\n";
-      } finally {
-        checkDanglingTransaction();
-      }
-  	return "Login failed\n";
-  }
-
-  /**
-   * Implement the create user function, with specified username, password, and initial amount
-   * to deposit into account.
-   * Returns created username success or failure if initial deposit is less than zero or if
-   * username is not unique.
-   */
-  public String transaction_createCustomer(String username, String password, int initAmount) {
-  	if (initAmount < 0) {
-  		return "Failed to create user\n";
-  	}
-  	String username_lower = username.toLowerCase();
-  	String username_taken = "SELECT username FROM Users WHERE username = ?";
-  	String create = "INSERT INTO Users(username, password, balance) Values(?, ?, ?)";
-  	
-    try {
-    	PreparedStatement ps1 = conn.prepareStatement(username_taken);
-    	PreparedStatement ps2 = conn.prepareStatement(create);
-    	ps1.setString(1, username_lower);
-    	ResultSet rs = ps1.executeQuery();
-    	if (rs.next()) {
-    		return "Failed to create user\n";
-    	}
-    	String salt_string = "1234";
-    	byte[] salt = salt_string.getBytes();
-
-    	// Specify the hash parameters
-    	KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-
-    	// Generate the hash
-    	SecretKeyFactory factory = null;
-    	byte[] hash = null;
-    	factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-    	hash = factory.generateSecret(spec).getEncoded();
-
-    	ps2.setString(1, username);
-    	ps2.setBytes(2, hash);
-    	ps2.setInt(3, initAmount);
-    	conn.setAutoCommit(false);
-    	ps2.executeUpdate();
-    	conn.commit();
-    	conn.setAutoCommit(true);
-    } catch (Exception e) {
-      	try {
-      		conn.rollback();
-      		return "Failed to create user\n";
-      	} catch (Exception e2) {
-      		return "Transaction failed, rolling back database";
-      	}
-    } finally {
-      checkDanglingTransaction();
-    }
-    return "Created user " + username + "\n";
-  }
-
-  class Itinerary {
-	  int flight_time;
-	  String info;
-	  int fid1;
-	  int fid2;
-	  int day;
-	  
-	  public Itinerary(int flight_time, String info, int fid1, int fid2, int day){
-		  this.flight_time = flight_time;
-		  this.info = info;
-		  this.fid1 = fid1;
-		  this.fid2 = fid2;
-		  this.day =  day;
-	  }
-	  
-	  public String getInfo() {
-		  return this.info;
-	  }
-	  
-	  public int getFid1() {
-		  return this.fid1;
-	  }
-	  
-	  public int getFid2() {
-		  return this.fid2;
-	  }
-	  
-	  public int getDay() {
-	  	return this.day;
-	  }
-	  
-  }
-  
-  class SortTimes implements Comparator<Itinerary> {
-	  public int compare(Itinerary a, Itinerary b) {
-	  	return a.flight_time - b.flight_time;
-	  }
-  }
-  
-  /**
-   * Implement the search function.
-   *
-   * Searches for flights from the given origin city to the given destination city, on the given day
-   * of the month. If directFlight = true, it only searches for direct flights, otherwise
-   * is searches for direct flights and indirect flights. Only searches for up to the number
-   * of itineraries given by the argument "numberOfItineraries".
-   *
-   * The results are sorted based on total flight time.
-   **/
- 
-  
-  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
-      int dayOfMonth, int numberOfItineraries) {
-	  
-	  SortedList.clear();
-	  StringBuffer sb = new StringBuffer();
-    String direct = "SELECT TOP (?) carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
-      	+ "fid, day_of_month FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0"
-      	+ " ORDER BY actual_time ASC, fid ASC";
-      
-    try {
-      PreparedStatement search = conn.prepareStatement(direct);
-      search.setInt(1, numberOfItineraries);
-      search.setString(2, originCity);
-      search.setString(3, destinationCity);
-      search.setInt(4, dayOfMonth);
-      ResultSet rs1 = search.executeQuery();
-        
-      int itinerary = -1;
-      while (rs1.next()) {
-        itinerary++;
-        String result_carrierId = rs1.getString(1);
-        int result_flightNum = rs1.getInt(2);
-        int result_time = rs1.getInt(5);
-        int result_capacity = rs1.getInt(6);
-        int result_price = rs1.getInt(7);
-        int fid = rs1.getInt(8);
-        
-          
-        String s = "1 flight(s), " + result_time + " minutes\nID: " + fid + " Day: " + dayOfMonth
-        		+ " Carrier: " + result_carrierId + " Number: "
-            + result_flightNum + " Origin: " + originCity + " Dest: "
-            + destinationCity + " Duration: " + result_time + " Capacity: " + result_capacity
-            + " Price: " + result_price + "\n";
-        SortedList.add(new Itinerary(result_time, s, fid, -1, dayOfMonth));
-      }
-      rs1.close();
-      if (!directFlight) {
-        int remaining = numberOfItineraries - itinerary - 1;
-        String indirect = "SELECT TOP (" + remaining + ") F1.fid, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city,"
-      			+ " F1.actual_time, F1.capacity, F1.price, F2.fid, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time,"
-      			+ " F2.capacity, F2.price, (F1.actual_time + F2.actual_time) AS total_duration FROM FLIGHTS F1 JOIN"
-      			+ " FLIGHTS F2 ON F1.day_of_month = F2.day_of_month WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ?"
-      			+ " AND F1.canceled = 0 AND F2.canceled = 0 AND F1.day_of_month = ? ORDER BY total_duration ASC, F1.fid ASC, F2.fid ASC";
-        PreparedStatement search2 = conn.prepareStatement(indirect);
-        search2.setString(1, originCity);
-        search2.setString(2, destinationCity);
-        search2.setInt(3, dayOfMonth);
-        ResultSet rs2 = search2.executeQuery();
-        	
-        while (rs2.next()) {
-      		itinerary++;
-      		int F1_fid = rs2.getInt(1);
-      		String F1_carrier = rs2.getString(2);
-      		int F1_flight_num = rs2.getInt(3);
-      		int F1_time = rs2.getInt(6);
-      		int F1_capacity = rs2.getInt(7);
-      		int F1_price = rs2.getInt(8);
-      		String one_stop = rs2.getString(5);
-      		
-      		int F2_fid = rs2.getInt(9);
-      		String F2_carrier = rs2.getString(10);
-      		int F2_flight_num = rs2.getInt(11);
-      		int F2_time = rs2.getInt(14);
-      		int F2_capacity = rs2.getInt(15);
-      		int F2_price = rs2.getInt(16);
-      		
-      		int total_time = rs2.getInt(17);
-      		
-      		String s2 = "2 flight(s), " + total_time + " minutes\nID: " + F1_fid + " Day: " + dayOfMonth
-          	  + " Carrier: " + F1_carrier + " Number: " + F1_flight_num + " Origin: " + originCity + " Dest: "
-                + one_stop + " Duration: " + F1_time + " Capacity: " + F1_capacity + " Price: " + F1_price + "\nID: " + F2_fid + " Day: "
-                + dayOfMonth + " Carrier: " + F2_carrier + " Number: " + F2_flight_num + " Origin: " + one_stop + " Dest: " + 
-                destinationCity + " Duration: " + F2_time + " Capacity: " + F2_capacity + " Price: " + F2_price + "\n";
-    		
-      		SortedList.add(new Itinerary (total_time, s2, F1_fid, F2_fid, dayOfMonth));
-      	}
-      	rs2.close();
-      }
-      Collections.sort(SortedList, new SortTimes()); 
-      if (itinerary == -1) {
-        return "No flights match your selection\n";
-      }  
-      for (int i = 0; i < SortedList.size(); i++) {
-        sb.append("Itinerary " + i + ": "+ SortedList.get(i).info);
-      }
-      return sb.toString();
-    } catch (SQLException e) {
-    	return "Failed to search\n";
-    } finally {
-      checkDanglingTransaction();
-    }
-  }
-
-  /**
-   * Implements the book itinerary function.
-   *
-   * itineraryId ID of the itinerary to book. The itinerary ID is returned by the search in
-   * the current session.
-   * 
-   * User cannot book reserations without being logged in. User also cannot book an itinerary
-   * without having done a search. The user cannot book two seperate itineraries on the same day.
-   *//
-  public String transaction_book(int itineraryId) {
-  	String book = "INSERT INTO Reservations(username, paid, cancelled, fid1, fid2) VALUES(?, 0, 0, ?, ?)";
-  	String rid = "SELECT rid FROM Reservations WHERE username = ? AND fid1 = ?";
-  	String check_day = "SELECT F1.fid FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT OUTER JOIN Flights F2 on R.fid1 = F2.fid" +
-  			" WHERE R.username = ? AND F1.day_of_month = ?";
-  	String check_capacity = "SELECT F1.fid, F1.capacity, COUNT(R.rid) FROM Flights F1 LEFT OUTER JOIN Reservations R ON F1.fid = R.fid1" +
-  			" WHERE F1.day_of_month = ? AND F1.fid = ? GROUP BY F1.fid, F1.capacity";
-  	String check_capacity_2nd = "SELECT F2.fid, F2.capacity, COUNT(R.rid) FROM Flights F2 LEFT OUTER JOIN Reservations R ON F2.fid = R.fid2" +
-  			" WHERE F2.day_of_month = ? AND F2.fid = ? GROUP BY F2.fid, F2.capacity"; 
-      
-    if (!logged_in) {
-      return "Cannot book reservations, not logged in\n";
-    }
-    
-    if (SortedList.isEmpty()  || itineraryId >= SortedList.size()) {
-    	return "No such itinerary " + itineraryId + "\n";
-    }
-    
-    int day = SortedList.get(itineraryId).getDay();
-    int flight_1 = SortedList.get(itineraryId).getFid1();
-    int flight_2 = SortedList.get(itineraryId).getFid2();
-    
-  	try {
-  		PreparedStatement check = conn.prepareStatement(check_day);
-  		check.setString(1, logged_user);
-  		check.setInt(2, day);
-  		ResultSet rs_check = check.executeQuery();
-  		if (rs_check.next()) {
-  			rs_check.close();
-  			return "You cannot book two flights in the same day\n";
-  		}
-  		rs_check.close();
-  		// check if flight 1 has capacity
-  		PreparedStatement capacity = conn.prepareStatement(check_capacity);
-  		capacity.setInt(1, day);
-  		capacity.setInt(2, flight_1);
-  		ResultSet rs_capa = capacity.executeQuery();
-  		if (rs_capa.next()) {
-    		int capa_num = rs_capa.getInt(2);
-    		int seats_filled = rs_capa.getInt(3);
-    		rs_capa.close();
-    		if ((capa_num <= seats_filled) || (capa_num == 0)) {
-    			return "Booking failed\n";
-    		}
-  		}
-  		rs_capa.close();
-  		
-  		// check if flight 2 has capacity
-  		if (flight_2 != -1) {
-  			PreparedStatement capacity2 = conn.prepareStatement(check_capacity_2nd);
-  			capacity2.setInt(1, day);
-  			capacity2.setInt(2, flight_2);
-  			ResultSet rs_capa2 = capacity2.executeQuery();
-  			if (rs_capa2.next()) {
-  				int capa2 = rs_capa2.getInt(2);
-  				int seats_2 = rs_capa2.getInt(3);
-  				rs_capa2.close();
-  				if ((capa2 <= seats_2) || (capa2 == 0)) {
-  					return "Booking failed\n";
-  				}
-  			}
-  			rs_capa2.close();
-  		} 
-  		
-      PreparedStatement reserve = conn.prepareStatement(book);
-      PreparedStatement rid_num = conn.prepareStatement(rid);
-      
-      reserve.setString(1, logged_user);
-      reserve.setInt(2, flight_1);
-      if (flight_2 == -1) {
-      	reserve.setNull(3, java.sql.Types.INTEGER);
-      } else {
-      	reserve.setInt(3, flight_2);
-      }
-      conn.setAutoCommit(false);
-      reserve.executeUpdate();
-      //conn.commit();
-      //conn.setAutoCommit(true);
-      rid_num.setString(1, logged_user);
-      rid_num.setInt(2, flight_1);
-      ResultSet rs = rid_num.executeQuery();
-      int reserved_id = -1;
-      if (rs.next()) {
-      	reserved_id = rs.getInt(1);
-      }
-      rs.close();
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Booked flight(s), reservation ID: " + reserved_id + "\n";
-    } catch (SQLException e) {
-    	e.printStackTrace();
-    	try {
-    		conn.rollback();
-    	} catch (Exception e2) {
-    		return "Rollback failed";
-    	}
-      return "Booking failed\n";
-    } finally {	
-      checkDanglingTransaction();
-    }
-  }
-
-  /**
-   * Implements the pay function.
-   */
-  public String transaction_pay(int reservationId) {
-    if (!logged_in) {
-    	return "Cannot pay, not logged in\n";
-    }
-    
-    boolean found = false;
-    String query = "SELECT U.username, U.balance, R.rid, R.paid, R.cancelled, F1.price, F2.price" +
-    		" FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid JOIN Users U on R.username = U.username" +
-    		" WHERE U.username = ? AND R.rid = ? AND R.cancelled = 0 AND R.paid = 0";
-    
-    String query2 = "UPDATE Reservations SET paid = 1 WHERE rid = ?";
-    String query3 = "UPDATE Users SET balance = ? WHERE username = ?";
-    
-  	try {
-    	PreparedStatement pay = conn.prepareStatement(query);
-    	pay.setString(1, logged_user);
-    	pay.setInt(2, reservationId);
-    	ResultSet rs = pay.executeQuery();
-    	int balance = 0;
-    	int price1 = 0;
-    	int price2 = 0;
-    	if (rs.next()) {
-    		found = true;
-    		balance = rs.getInt(2);
-    		price1 = rs.getInt(6);
-    		price2 = rs.getInt(7);
-    	}
-    	rs.close();
-    	if (!found) {
-    		return "Cannot find unpaid reservation " + reservationId + " under user: " + logged_user + "\n";
-    	}
-    	if (price1 + price2 > balance) {
-    		return "User has only " + balance + " in account but itinerary costs " + (price1 + price2) + "\n";
-    	} else {
-    		PreparedStatement update = conn.prepareStatement(query2);
-    		update.setInt(1, reservationId);
-    		conn.setAutoCommit(false);
-    		update.executeUpdate();
-    		PreparedStatement remain_balance = conn.prepareStatement(query3);
-    		remain_balance.setInt(1, (balance - price1 - price2));
-    		remain_balance.setString(2, logged_user);
-    		remain_balance.executeUpdate();
-    		conn.commit();
-    		conn.setAutoCommit(true);
-    		return "Paid reservation: " + reservationId + " remaining balance: " + (balance - price1 - price2) + "\n";
-    	}
-    } catch (Exception e) {
-    	try {
-    		conn.rollback();
-    	} catch (Exception e2) {
-    		return "Rollback failed";
-    	}
-      return "Failed to pay for reservation " + reservationId + "\n";
-    } finally {
-      checkDanglingTransaction();
-    }
-  }
-
-  /**
-   * Implements the reservations function.
-   */
-  public String transaction_reservations() {
-  	String get_flights = "SELECT F1.fid, F1.day_of_month, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city, F1.actual_time, F1.capacity, F1.price," +
-  			" F2.fid, F2.day_of_month, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time, F2.capacity, F2.price," +
-  			" R.rid, R.username, R.paid, R.cancelled, R.fid1, R.fid2 " +
-  			" FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid" +
-  			" WHERE R.username = ?";
-  	boolean no_reservations = true;
-  	StringBuffer sb = new StringBuffer();
-  	
-    if (!logged_in) {
-    	return "Cannot view reservations, not logged in\n";
-    }
-  	try {
-    	PreparedStatement res = conn.prepareStatement(get_flights);
-  		res.setString(1, logged_user);
-  		ResultSet rs2 = res.executeQuery();
-  		while (rs2.next()) {
-  			int cancel = rs2.getInt(22);
-  			if (cancel == 0) {
-    			no_reservations = false;
-    			int rid = rs2.getInt(19);
-    			int paid = rs2.getInt(21);
-    			int fid1 = rs2.getInt(23);
-    			int fid2 = rs2.getInt(24);
-    			String paid_tf = "false";
-    			if (paid == 1) {
-    				paid_tf = "true";
-    			}
-    			sb.append("Reservation " + rid + " paid: " + paid_tf + ":\n");
-    			int day = rs2.getInt(2);
-    			String carrier1 = rs2.getString(3);
-    			int num1 = rs2.getInt(4);
-    			String origin1 = rs2.getString(5);
-    			String dest1 = rs2.getString(6);
-    			int time1 = rs2.getInt(7);
-    			int capa1 = rs2.getInt(8);
-    			int price1 = rs2.getInt(9);
-    			sb.append("ID: " + fid1 + " Day: " + day + " Carrier: " + carrier1 + " Number: " + num1 + " Origin: " + origin1 + " Dest: "  + dest1 +
-    					" Duration: " + time1 + " Capacity: " + capa1 + " Price: " + price1 +"\n");
-    			if (fid2 != 0) {  // 2 flights
-    				String carrier2 = rs2.getString(12);
-    				int num2 = rs2.getInt(13);
-    				String origin2 = rs2.getString(14);
-    				String dest2 = rs2.getString(15);
-    				int time2 = rs2.getInt(16);
-    				int capa2 = rs2.getInt(17);
-    				int price2 = rs2.getInt(18);
-    				sb.append("ID: " + fid2 + " Day: " + day + " Carrier: " + carrier2 + " Number: " + num2 + " Origin: " + origin2 + " Dest: "  + dest2 +
-      					" Duration: " + time2 + " Capacity: " + capa2 + " Price: " + price2 +"\n");
-    			}	
-  			}
-  		}
-  		rs2.close();
-  		if (no_reservations) {
-  			return "No reservations found\n";
-  		}
-  		return sb.toString();
-  	} catch (Exception e) {
-      return "Failed to retrieve reservations\n";
-    } finally {
-      checkDanglingTransaction();
-    }
-  }
-
-  /**
-   * Implements the cancel operation.
-   */
-  public String transaction_cancel(int reservationId) {
-    if (!logged_in) {
-    	return "Cannot cancel reservations, not logged in\n";
-    }
-    
-    String query = "SELECT R.rid, U.username, R.paid, U.balance, F1.price, F2.price FROM Reservations R JOIN Users U ON R.username = U.username" +
-    		" JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid WHERE R.cancelled = 0 AND R.rid = ? AND U.username = ?";
-    String query2 = "UPDATE Users SET balance = ? WHERE username = ?";
-    String query3 = "UPDATE Reservations SET cancelled = 1 WHERE username = ? AND rid = ?";
-    
-  	try {
-    PreparedStatement cancel = conn.prepareStatement(query);
-    cancel.setInt(1, reservationId);
-    cancel.setString(2, logged_user);
-    ResultSet rs = cancel.executeQuery();
-    int paid = -1;
-    int balance = 0;
-    int price1 = 0;
-    int price2 = 0;
-    if (rs.next()) {
-    	paid = rs.getInt(3);
-    	balance = rs.getInt(4);
-    	price1 = rs.getInt(5);
-    	price2 = rs.getInt(6);
-    }
-    rs.close();
-    PreparedStatement cnc = conn.prepareStatement(query3);
-    conn.setAutoCommit(false);
-    if (paid == 1) {
-    	PreparedStatement refund = conn.prepareStatement(query2);
-    	refund.setInt(1, (balance + price1 + price2));
-    	refund.setString(2, logged_user);
-    	refund.executeUpdate();
-    }
-    if (paid != -1) {
-    	cnc.setString(1, logged_user);
-    	cnc.setInt(2, reservationId);
-    	cnc.executeUpdate();
-    	conn.commit();
-    	conn.setAutoCommit(true);
-    	return "Canceled reservation " + reservationId + "\n";
-    } else {
-    	conn.setAutoCommit(true);
-    	return "Failed to cancel reservation " + reservationId + "\n"; 
-    }
-    } catch (Exception e) {
-    	try {
-    		conn.rollback();
-    	} catch (Exception e2) {
-    		return "Failed to rollback transaction";
-    	}
-      return "Failed to cancel reservation " + reservationId + "\n";
-    } finally {
-      checkDanglingTransaction();
-    }
-  }
-
-  /**
-   * A class to store flight information.
-   */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
-
-    public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
-          + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
-          + " Capacity: " + capacity + " Price: " + price;
-    }
-  }
-}
+/* This file is written using Java Database Connectivity API which provides code for querying, inserting,
+ * and updating relational databases. The code below creates functions used by the end user in a command-line interface
+ * to interact with an database in SQL Server containing flight, reservation, and carrier information. This file is
+ * only for demonstrative purposes.
+ * 
+ */
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import java.security.*;
+import java.security.spec.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Runs queries against a back-end database
+ */
+public class Query {
+  // Password hashing: PBKDF2 iterations and derived key length in bits
+  private static final int HASH_STRENGTH = 65536;
+  private static final int KEY_LENGTH = 128;
+
+  // Open transactions of the connection on SQL Server, see checkDanglingTransaction
+  private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
+
+  // Numbers the Query objects of this JVM, to keep their JMX names apart
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  // Most itineraries one group booking may reserve; bounds the SQL variants it prepares
+  private static final int MAX_GROUP_SIZE = 10;
+
+  // Most connections a route search may use; each stop multiplies the routes explored
+  public static final int MAX_ROUTE_STOPS = 3;
+
+  // Runs of a booking transaction before a deadlock or write conflict counts as a failure
+  private static final int MAX_ATTEMPTS = 4;
+
+  // Upper bound of the random wait before the first retry, doubled for each later one
+  private static final long BACKOFF_MS = 8;
+
+  // Result of a transaction that admission control turned away before it ran
+  public static final String BUSY = "Server busy, try again later\n";
+
+  // Transaction classes of the admission controller, see enableAdmissionControl
+  public static final int ADMIT_SEARCH = 0;
+  public static final int ADMIT_BOOK = 1;
+  public static final int ADMIT_PAY = 2;
+  public static final int ADMIT_ACCOUNT = 3;
+  public static final int ADMIT_CANCEL = 4;
+  private static final int ADMISSION_CLASSES = 5;
+
+  // DB Connection
+  private Connection conn;
+
+  // The databases are SQL Server; otherwise statements are adapted for the embedded H2
+  // database of the tools, see StatementCache.portable
+  boolean sqlServer;
+
+  // Prepared statements for conn, reused across transactions
+  private StatementCache statements;
+
+  // Connections used by the transaction_* methods, shared by all sessions
+  private ConnectionPool pool;
+
+  // Databases holding the flights and reservations of each day; shards[0] is the home
+  // database of conn and pool, which also holds the users and their balances
+  private Shard[] shards;
+
+  // Runs submitted transactions, one virtual thread per request; Query needs Java 21 or later
+  private ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+
+  // Admits transaction_*Async calls; one permit per transaction started and not yet finished
+  private int maxInFlight;
+  private Semaphore inFlight;
+
+  // Runs PBKDF2 password hashing with its own bounded parallelism
+  private PasswordHasher hasher = new PasswordHasher(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1024);
+
+  // Seats left per flight as last seen by this JVM, used to reject sold-out flights early
+  SeatCounters seats = new SeatCounters();
+
+  // Latency histograms and counters, exported over JMX
+  final Metrics metrics = new Metrics();
+
+  // Session used by the single-user transaction_* overloads, e.g. from the command line
+  Session defaultSession = new Session();
+
+  // Optional in-memory flight graph, answers searches without querying Flights; set only by
+  // loadFlightIndex
+  volatile FlightIndex flightIndex = null;
+
+  // Flight graph built on first use by searchRoutes and available-only searches, when
+  // loadFlightIndex was not called; plain searches keep querying Flights
+  private volatile FlightIndex ownIndex = null;
+  private final Object indexLock = new Object();
+
+  // Optional search results shared by all sessions, see enableSearchCache
+  volatile SearchCache searchCache = null;
+
+  // Optional rendered reservation listings per user, see enableReservationCache
+  volatile ReservationCache reservationCache = null;
+
+  // Book, pay and cancel through the procedures of Flights DB Procedures.sql, see useStoredProcedures
+  volatile boolean storedProcedures = false;
+
+  // Optional batching of booking and payment writes into shared commits, see enableGroupCommit
+  volatile GroupCommit groupCommit = null;
+
+  // Flights with seats left, per day, for searches of available flights only; see loadAvailability
+  volatile Availability availability = null;
+
+  // Check for dangling transactions on the server as well as on the client, see setTransactionDebug
+  volatile boolean transactionDebug = false;
+
+  // Optional concurrency limits and queues per transaction class, see enableAdmissionControl
+  volatile AdmissionControl admissionControl = null;
+
+  // Permit of every transaction while admission control is off
+  private final Permit unlimited = new Permit(null, 0);
+
+  /**
+   * Opens an admin connection and a pool of at most poolSize connections to the given
+   * database. All sessions created from this Query share the pool. At most 8 * poolSize
+   * asynchronous transactions are admitted at a time.
+   */
+  public Query(String url, Properties info, int poolSize) throws SQLException {
+    this(url, info, poolSize, 8 * poolSize);
+  }
+
+  /**
+   * Like Query(url, info, poolSize), admitting at most maxInFlight asynchronous transactions
+   * at a time.
+   */
+  public Query(String url, Properties info, int poolSize, int maxInFlight) throws SQLException {
+    this(new String[] {url}, info, poolSize, maxInFlight);
+  }
+
+  /**
+   * Spreads flights and reservations over the databases at urls by day of month: day d
+   * belongs to urls[(d - 1) % urls.length]. urls[0] is the home database, which also holds
+   * the users and their balances. Each database gets its own pool of at most poolSize
+   * connections. Every database needs the full schema and the flights of its days, as
+   * written by FlightDataset.populate(conn, i, urls.length) or FlightLoader --shard i/n;
+   * transaction_createCustomer copies each user row to all of them for the Reservations
+   * foreign key.
+   */
+  public Query(String[] urls, Properties info, int poolSize, int maxInFlight) throws SQLException {
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+    conn = DriverManager.getConnection(urls[0], info);
+    shards = new Shard[urls.length];
+    try {
+      DatabaseMetaData meta = conn.getMetaData();
+      sqlServer = meta.getDatabaseProductName().toLowerCase(Locale.ROOT).contains("sql server");
+      if (meta.getDatabaseProductName().equals("H2") && meta.getDatabaseMajorVersion() < 2) {
+        // see StatementCache.portable
+        throw new SQLFeatureNotSupportedException("Query needs H2 2.x, found " + meta.getDatabaseProductVersion());
+      }
+      prepareStatements();
+      pool = new ConnectionPool(urls[0], info, poolSize);
+      shards[0] = new Shard(0, conn, pool);
+      for (int i = 1; i < urls.length; i++) {
+        Connection admin = DriverManager.getConnection(urls[i], info);
+        shards[i] = new Shard(i, admin, new ConnectionPool(urls[i], info, poolSize));
+      }
+    } catch (SQLException e) {
+      // nobody gets a Query to close, so close what was opened before the failure
+      for (int i = shards.length - 1; i >= 1; i--) {
+        if (shards[i] != null) {
+          try {
+            shards[i].close();
+          } catch (SQLException e2) {
+            e.addSuppressed(e2);
+          }
+        }
+      }
+      if (pool != null) {
+        pool.close();
+      }
+      if (statements != null) {
+        statements.close();
+      }
+      try {
+        conn.close();
+      } catch (SQLException e2) {
+        e.addSuppressed(e2);
+      }
+      workers.shutdown();
+      hasher.shutdown();
+      throw e;
+    }
+    metrics.register();
+  }
+
+  /**
+   * Closes the pooled connections, the admin connection and the worker threads.
+   */
+  public void close() throws SQLException {
+    metrics.unregister();
+    GroupCommit group = groupCommit;
+    if (group != null) {
+      group.stop();
+    }
+    workers.shutdown();
+    hasher.shutdown();
+    pool.close();
+    closeStatements();
+    conn.close();
+    for (int i = 1; i < shards.length; i++) {
+      shards[i].close();
+    }
+  }
+
+  /**
+   * The shard holding the flights and reservations of the given day.
+   */
+  Shard shardOfDay(int dayOfMonth) {
+    return shards[Math.floorMod(dayOfMonth - 1, shards.length)];
+  }
+
+  /**
+   * Reservation ids seen by users are unique across shards: the shard's own rid times the
+   * number of shards, plus the shard's index. With one database they are the rids of
+   * Reservations.
+   */
+  int globalRid(Shard shard, int rid) {
+    return rid * shards.length + shard.index;
+  }
+
+  Shard shardOfReservation(int reservationId) {
+    return shards[Math.floorMod(reservationId, shards.length)];
+  }
+
+  int localRid(int reservationId) {
+    return Math.floorDiv(reservationId, shards.length);
+  }
+
+  /**
+   * Number of databases flights and reservations are spread over.
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Number of payments and cancellations whose balance change on the home database was
+   * taken back because the reservation's shard then failed to commit.
+   */
+  public long getCrossShardUndos() {
+    return metrics.crossShardUndos.sum();
+  }
+
+  /**
+   * Creates the state for a new user of this Query. Sessions are cheap and hold no
+   * connection of their own.
+   */
+  public Session openSession() {
+    return new Session();
+  }
+
+  /**
+   * Runs a transaction on a virtual thread, e.g.
+   * submit(() -> query.transaction_search(session, ...)). Blocking on a pooled connection
+   * parks only the virtual thread.
+   */
+  public <T> Future<T> submit(Callable<T> transaction) {
+    return workers.submit(transaction);
+  }
+
+  /**
+   * Runs a transaction on a virtual thread and completes the returned future on the
+   * completion executor, so callbacks never run on a worker and a caller never parks a
+   * thread of its own. When maxInFlight transactions are already running, the future
+   * completes exceptionally with RejectedExecutionException instead of queueing.
+   */
+  private <T> CompletableFuture<T> async(final Callable<T> transaction, final Executor completion) {
+    final CompletableFuture<T> result = new CompletableFuture<T>();
+    if (!inFlight.tryAcquire()) {
+      metrics.asyncRejected.increment();
+      deliver(result, null, new RejectedExecutionException(maxInFlight + " transactions already in flight"), completion);
+      return result;
+    }
+    try {
+      workers.execute(new Runnable() {
+        public void run() {
+          T value = null;
+          Throwable error = null;
+          try {
+            value = transaction.call();
+          } catch (Throwable e) {
+            error = e;
+          } finally {
+            inFlight.release();
+          }
+          deliver(result, value, error, completion);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.release();
+      deliver(result, null, e, completion);
+    }
+    return result;
+  }
+
+  /**
+   * Completes future on the completion executor, or on this thread if the executor refuses.
+   */
+  private <T> void deliver(final CompletableFuture<T> future, final T value, final Throwable error, Executor completion) {
+    Runnable complete = new Runnable() {
+      public void run() {
+        if (error == null) {
+          future.complete(value);
+        } else {
+          future.completeExceptionally(error);
+        }
+      }
+    };
+    try {
+      completion.execute(complete);
+    } catch (RejectedExecutionException e) {
+      complete.run();
+    }
+  }
+
+  /**
+   * Asynchronous transaction_login. Requests of one session may overlap: a session holds no
+   * connection, and each transaction reads the session's state once when it starts. A
+   * request that depends on an earlier one, such as book after search, should be chained
+   * with thenCompose. Every transaction_*Async method completes on the given executor.
+   */
+  public CompletableFuture<String> transaction_loginAsync(final Session session, final String username,
+      final String password, Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_login(session, username, password);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_createCustomer.
+   */
+  public CompletableFuture<String> transaction_createCustomerAsync(final Session session, final String username,
+      final String password, final int initAmount, Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_createCustomer(session, username, password, initAmount);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_search.
+   */
+  public CompletableFuture<String> transaction_searchAsync(final Session session, final String originCity,
+      final String destinationCity, final boolean directFlight, final int dayOfMonth, final int numberOfItineraries,
+      Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_searchRoutes.
+   */
+  public CompletableFuture<String> transaction_searchRoutesAsync(final Session session, final String originCity,
+      final String destinationCity, final int maxStops, final int dayOfMonth, final int numberOfItineraries,
+      Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_searchRoutes(session, originCity, destinationCity, maxStops, dayOfMonth, numberOfItineraries);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_book.
+   */
+  public CompletableFuture<String> transaction_bookAsync(final Session session, final int itineraryId,
+      Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_book(session, itineraryId);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_bookGroup.
+   */
+  public CompletableFuture<String> transaction_bookGroupAsync(final Session session, final int[] itineraryIds,
+      Executor completion) {
+    final int[] ids = itineraryIds.clone();
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_bookGroup(session, ids);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_pay.
+   */
+  public CompletableFuture<String> transaction_payAsync(final Session session, final int reservationId,
+      Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_pay(session, reservationId);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_reservations.
+   */
+  public CompletableFuture<String> transaction_reservationsAsync(final Session session, Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_reservations(session);
+      }
+    }, completion);
+  }
+
+  /**
+   * Asynchronous transaction_cancel.
+   */
+  public CompletableFuture<String> transaction_cancelAsync(final Session session, final int reservationId,
+      Executor completion) {
+    return async(new Callable<String>() {
+      public String call() {
+        return transaction_cancel(session, reservationId);
+      }
+    }, completion);
+  }
+
+  /**
+   * Number of booking attempts that failed as a deadlock victim or on a write conflict.
+   */
+  public long getConflicts() {
+    return metrics.conflicts.sum();
+  }
+
+  /**
+   * Number of booking attempts run again after a conflict.
+   */
+  public long getRetries() {
+    return metrics.retries.sum();
+  }
+
+  /**
+   * Number of bookings that failed because every attempt hit a conflict.
+   */
+  public long getRetriesExhausted() {
+    return metrics.retriesExhausted.sum();
+  }
+
+  /**
+   * Number of asynchronous transactions admitted and not yet finished.
+   */
+  public int getAsyncInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  /**
+   * Number of asynchronous transactions refused because maxInFlight were already running.
+   */
+  public long getAsyncRejected() {
+    return metrics.asyncRejected.sum();
+  }
+
+  /**
+   * Hashes a password on the hashing executor. The future completes exceptionally with
+   * RejectedExecutionException when the hashing queue is full.
+   */
+  public CompletableFuture<byte[]> hashPassword(String password) {
+    return hasher.hash(password);
+  }
+
+  /**
+   * Number of password hashes waiting for a hashing thread.
+   */
+  public int getHashQueueDepth() {
+    return hasher.queueDepth();
+  }
+
+  /**
+   * Number of password hashes completed since startup.
+   */
+  public long getHashCount() {
+    return hasher.count.sum();
+  }
+
+  /**
+   * Mean time spent computing one password hash, excluding time queued, in microseconds.
+   */
+  public long getHashMeanMicros() {
+    long count = hasher.count.sum();
+    return count == 0 ? 0 : hasher.totalNanos.sum() / count / 1000;
+  }
+
+  /**
+   * Longest time spent computing one password hash since startup, in microseconds.
+   */
+  public long getHashMaxMicros() {
+    return hasher.maxNanos.get() / 1000;
+  }
+
+  /**
+   * Mean time password hashes spent queued before a hashing thread picked them up, in microseconds.
+   */
+  public long getHashMeanWaitMicros() {
+    long count = hasher.count.sum();
+    return count == 0 ? 0 : hasher.waitNanos.sum() / count / 1000;
+  }
+
+  /**
+   * Clear the data in any custom tables created, on every shard.
+   */
+  public void clearTables() throws SQLException {
+	  String delete_legs = "TRUNCATE TABLE ReservationLegs";
+	  String delete_resr = "TRUNCATE TABLE Reservations";
+	  String delete_user = "DELETE FROM Users";
+	  String reseed = sqlServer ? "DBCC CHECKIDENT ('Reservations', RESEED, 1)"
+	      : "ALTER TABLE Reservations ALTER COLUMN rid RESTART WITH 1";
+	  String reset_seats = "UPDATE SeatInventory SET booked = 0";
+	  
+	  try {
+		  // users go last, on the home database after the other shards' copies
+		  for (int i = shards.length - 1; i >= 0; i--) {
+			  Statement stm1 = shards[i].admin.createStatement();
+			  try {
+				  stm1.executeUpdate(delete_legs);
+				  stm1.executeUpdate(delete_resr);
+				  stm1.executeUpdate(delete_user);
+				  stm1.executeUpdate(reseed);
+				  stm1.executeUpdate(reset_seats);
+			  } finally {
+				  stm1.close();
+			  }
+		  }
+		  seats.clear();
+		  if (searchCache != null) {
+			  searchCache.clear();
+		  }
+		  if (reservationCache != null) {
+			  reservationCache.clear();
+		  }
+		  if (availability != null) {
+			  availability.reset();
+		  }
+    } catch (Exception e) {
+      System.out.println("Failed to clear tables");
+    }
+  }
+
+  private void prepareStatements() throws SQLException {
+    statements = new StatementCache(conn);
+    if (sqlServer) {
+      statements.get("checkDanglingTransaction", TRANCOUNT_SQL);
+    }
+  }
+
+  /**
+   * Throws IllegalStateException if the pooled connection still has an open transaction,
+   * after rolling it back. The check uses the transaction state tracked on the client; in
+   * debug mode, see setTransactionDebug, the server's @@TRANCOUNT is read as well on SQL
+   * Server.
+   */
+  private void checkDanglingTransaction(PooledConnection pc) {
+    try {
+      int count = pc.inTransaction ? 1 : 0;
+      if (transactionDebug && sqlServer) {
+        ResultSet rs = executeQuery(pc, pc.statements.get("checkDanglingTransaction", TRANCOUNT_SQL));
+        try {
+          rs.next();
+          count = Math.max(count, rs.getInt("tran_count"));
+        } finally {
+          rs.close();
+        }
+      }
+      if (count > 0) {
+        metrics.danglingTransactions.increment();
+        if (pc.inTransaction) {
+          rollback(pc);
+        } else {
+          // opened on the server without going through begin
+          Statement stm = pc.conn.createStatement();
+          try {
+            stm.execute("IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION");
+          } finally {
+            stm.close();
+          }
+        }
+        throw new IllegalStateException(
+            "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Database error", e);
+    }
+  }
+
+  /**
+   * Also asks the server for open transactions whenever a connection goes back to the pool,
+   * one more round trip per transaction, to catch transactions the client did not track.
+   */
+  public void setTransactionDebug(boolean on) {
+    transactionDebug = on;
+  }
+
+  /**
+   * Checks the connection for a dangling transaction, hands it back to the pool and records
+   * the latency of the transaction that used it. pc is null if the transaction never got one.
+   */
+  private void release(PooledConnection pc, LatencyHistogram transaction, long start) {
+    try {
+      if (pc != null) {
+        try {
+          checkDanglingTransaction(pc);
+        } finally {
+          pc.owner.release(pc);
+        }
+      }
+    } finally {
+      transaction.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Runs a query on a pooled connection, timing it under its statement name.
+   */
+  private ResultSet executeQuery(PooledConnection pc, PreparedStatement ps) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return ps.executeQuery();
+    } finally {
+      pc.statements.histogram(ps).record(System.nanoTime() - start);
+      metrics.roundTrips.increment();
+    }
+  }
+
+  /**
+   * Runs an update on a pooled connection, timing it under its statement name.
+   */
+  private int executeUpdate(PooledConnection pc, PreparedStatement ps) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return ps.executeUpdate();
+    } finally {
+      pc.statements.histogram(ps).record(System.nanoTime() - start);
+      metrics.roundTrips.increment();
+    }
+  }
+
+  /**
+   * Work that inTransaction runs in a transaction. It runs again after a conflict, so it
+   * must start from scratch on every call. Work that finds it has nothing to write, e.g. on
+   * a full flight, may roll back itself and return; there is then nothing left to commit.
+   */
+  interface TransactionWork<T> {
+    T run(PooledConnection tx) throws SQLException;
+  }
+
+  /**
+   * Runs work in a transaction on pc and commits it. If work throws, the transaction is
+   * rolled back, and run again if retryConflict says the failure was a conflict. This is
+   * the one place that begins, commits, rolls back and retries for the transaction_*
+   * methods; read-only work runs without a transaction.
+   */
+  private <T> T inTransaction(PooledConnection pc, TransactionWork<T> work) throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        begin(pc);
+        T result = work.run(pc);
+        commit(pc);
+        return result;
+      } catch (SQLException e) {
+        if (!retryConflict(pc, e, attempt)) {
+          rollback(pc);
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens a transaction on pc unless one is open. Whether one is open is tracked on the
+   * client, so no statement is sent to find out.
+   */
+  private void begin(PooledConnection pc) throws SQLException {
+    if (!pc.inTransaction) {
+      pc.conn.setAutoCommit(false);
+      pc.inTransaction = true;
+    }
+  }
+
+  /**
+   * Commits the open transaction of pc, if any, and returns it to autocommit.
+   */
+  private void commit(PooledConnection pc) throws SQLException {
+    if (!pc.inTransaction) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      pc.conn.commit();
+    } finally {
+      metrics.commit.record(System.nanoTime() - start);
+      metrics.roundTrips.increment();
+    }
+    end(pc);
+  }
+
+  /**
+   * Rolls back the open transaction of pc, if any, and returns it to autocommit.
+   */
+  private void rollback(PooledConnection pc) throws SQLException {
+    if (pc == null || !pc.inTransaction) {
+      return;
+    }
+    metrics.rollbacks.increment();
+    metrics.roundTrips.increment();
+    try {
+      pc.conn.rollback();
+    } finally {
+      end(pc);
+    }
+  }
+
+  private void end(PooledConnection pc) throws SQLException {
+    pc.inTransaction = false;
+    pc.conn.setAutoCommit(true);
+  }
+
+  /**
+   * Closes every statement prepared on this connection.
+   */
+  public void closeStatements() {
+    if (statements != null) {
+      statements.close();
+    }
+  }
+
+  /**
+   * Number of statement lookups answered from a statement cache, over all connections.
+   */
+  public long getStatementCacheHits() {
+    return metrics.statementCacheHits.sum();
+  }
+
+  /**
+   * Number of statement lookups that had to prepare a new statement on the server, over all
+   * connections.
+   */
+  public long getStatementCacheMisses() {
+    return metrics.statementCacheMisses.sum();
+  }
+
+  /**
+   * Builds the in-memory flight index from the Flights table of every shard, taking from
+   * each only the days it owns. Once loaded, direct and one-stop searches are answered from
+   * memory instead of the Flights self-join. Call again to pick up changes to Flights.
+   */
+  public void loadFlightIndex() throws SQLException {
+    installFlightIndex(readFlightIndex());
+  }
+
+  private FlightIndex readFlightIndex() throws SQLException {
+    String load = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price"
+        + " FROM Flights WHERE canceled = 0";
+    FlightIndex index = new FlightIndex();
+    for (Shard shard : shards) {
+      // a pooled connection, not the admin one, since concurrent searches may load at once
+      PooledConnection pc = shard.pool.acquire();
+      ResultSet rs = null;
+      try {
+        rs = executeQuery(pc, pc.statements.get("flightIndex.load", load));
+        while (rs.next()) {
+          if (shardOfDay(rs.getInt(2)) != shard) {
+            continue;
+          }
+          Flight f = new Flight();
+          f.fid = rs.getInt(1);
+          f.dayOfMonth = rs.getInt(2);
+          f.carrierId = rs.getString(3);
+          f.flightNum = rs.getString(4);
+          f.originCity = rs.getString(5);
+          f.destCity = rs.getString(6);
+          f.time = rs.getInt(7);
+          f.capacity = rs.getInt(8);
+          f.price = rs.getInt(9);
+          index.add(f);
+        }
+      } finally {
+        if (rs != null) {
+          rs.close();
+        }
+        pc.owner.release(pc);
+      }
+    }
+    index.sort();
+    return index;
+  }
+
+  /**
+   * The flight index of searches that cannot run in SQL: the one installed by loadFlightIndex,
+   * or else a private one, built from Flights the first time and not refreshed.
+   */
+  private FlightIndex searchIndex() throws SQLException {
+    FlightIndex index = flightIndex;
+    if (index == null) {
+      index = ownIndex;
+      if (index == null) {
+        synchronized (indexLock) {
+          index = ownIndex;
+          if (index == null) {
+            index = readFlightIndex();
+            ownIndex = index;
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Builds the in-memory flight index from a snapshot written by FlightSnapshot.export,
+   * without querying the database. Carrier and city names are shared with the snapshot's
+   * dictionaries, so the index holds one String per name rather than per flight. The snapshot
+   * must be exported from as many shards as this Query has, in the same order; otherwise
+   * throws IllegalArgumentException.
+   */
+  public void loadFlightIndex(FlightSnapshot snapshot) {
+    if (snapshot.shards() != shards.length) {
+      throw new IllegalArgumentException("snapshot of " + snapshot.shards() + " shard(s), this Query has "
+          + shards.length);
+    }
+    FlightIndex index = new FlightIndex();
+    HashMap<Integer, String> flightNums = new HashMap<Integer, String>();
+    for (int row = 0; row < snapshot.size(); row++) {
+      Flight f = new Flight();
+      f.fid = snapshot.fid(row);
+      f.dayOfMonth = snapshot.dayOfMonth(row);
+      f.carrierId = snapshot.carrierId(row);
+      String num = flightNums.get(snapshot.flightNum(row));
+      if (num == null) {
+        num = Integer.toString(snapshot.flightNum(row));
+        flightNums.put(snapshot.flightNum(row), num);
+      }
+      f.flightNum = num;
+      f.originCity = snapshot.originCity(row);
+      f.destCity = snapshot.destCity(row);
+      f.time = snapshot.actualTime(row);
+      f.capacity = snapshot.capacity(row);
+      f.price = snapshot.price(row);
+      index.add(f);
+    }
+    index.sort();
+    installFlightIndex(index);
+  }
+
+  /**
+   * Builds the per-day bitsets of flights with seats left from SeatInventory on every shard.
+   * Searches asked for available flights only use them to drop sold-out flights and
+   * connections before ranking; they are loaded on the first such search. Bookings and
+   * cancellations of this Query keep them up to date; call again to pick up other writers.
+   */
+  public void loadAvailability() throws SQLException {
+    String load = "SELECT F.fid, F.day_of_month, S.capacity - S.booked FROM Flights F"
+        + " JOIN SeatInventory S ON S.fid = F.fid WHERE F.canceled = 0";
+    ArrayList<int[]> flights = new ArrayList<int[]>();
+    for (Shard shard : shards) {
+      PooledConnection pc = shard.pool.acquire();
+      ResultSet rs = null;
+      try {
+        rs = executeQuery(pc, pc.statements.get("availability.load", load));
+        while (rs.next()) {
+          int day = rs.getInt(2);
+          if (day >= 1 && day <= 31 && shardOfDay(day) == shard) {
+            flights.add(new int[] {rs.getInt(1), day, rs.getInt(3)});
+          }
+        }
+      } finally {
+        if (rs != null) {
+          rs.close();
+        }
+        pc.owner.release(pc);
+      }
+    }
+    availability = new Availability(flights);
+  }
+
+  private void installFlightIndex(FlightIndex index) {
+    flightIndex = index;
+    SearchCache cache = searchCache;
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Puts a cache of at most maxEntries search results in front of transaction_search, shared
+   * by all sessions. Entries are keyed on origin, destination, day and directFlight, and one
+   * entry serves any numberOfItineraries up to the rows it fetched. Entries hold only Flights
+   * columns, which Query never writes: the capacity shown is the flight's, not the seats
+   * left, and plain searches do not skip full flights, so bookings and cancellations leave
+   * them valid. After changing Flights outside of Query, call invalidateFlight for each flight
+   * changed; loadFlightIndex and clearTables drop every entry.
+   */
+  public void enableSearchCache(int maxEntries) {
+    searchCache = new SearchCache(maxEntries);
+  }
+
+  /**
+   * Drops cached searches that show the given flight. Call after changing a flight's
+   * capacity or canceled status outside of Query.
+   */
+  public void invalidateFlight(int fid) {
+    SearchCache cache = searchCache;
+    if (cache != null) {
+      cache.invalidateFlight(fid);
+    }
+  }
+
+  /**
+   * Fraction of searches answered from the search cache, 0 when it is off or unused.
+   */
+  public double getSearchCacheHitRatio() {
+    SearchCache cache = searchCache;
+    if (cache == null) {
+      return 0;
+    }
+    long hits = cache.hits.sum();
+    long total = hits + cache.misses.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Number of search cache entries dropped to stay within maxEntries.
+   */
+  public long getSearchCacheEvictions() {
+    SearchCache cache = searchCache;
+    return cache == null ? 0 : cache.evictions.sum();
+  }
+
+  /**
+   * Number of search cache entries dropped because one of their flights changed.
+   */
+  public long getSearchCacheInvalidations() {
+    SearchCache cache = searchCache;
+    return cache == null ? 0 : cache.invalidations.sum();
+  }
+
+  /**
+   * Runs transaction_book, transaction_pay and transaction_cancel as one call each to the
+   * stored procedures of Flights DB Procedures.sql, one round trip per transaction, instead
+   * of a sequence of JDBC statements. If the procedures turn out not to be installed, the
+   * JDBC statements are used again.
+   */
+  public void useStoredProcedures(boolean on) {
+    storedProcedures = on;
+  }
+
+  /**
+   * True while transactions run as stored procedures; false if they were never turned on or
+   * turned out not to be installed.
+   */
+  public boolean usingStoredProcedures() {
+    return storedProcedures;
+  }
+
+  /**
+   * Keeps the output of transaction_reservations per user, at most about maxBytes of it,
+   * least recently used users evicted first. A cached listing is answered without a
+   * database round trip. transaction_book, transaction_bookGroup, transaction_pay and
+   * transaction_cancel update the listing of their user when they commit.
+   */
+  public void enableReservationCache(long maxBytes) {
+    reservationCache = new ReservationCache(maxBytes);
+  }
+
+  /**
+   * Fraction of transaction_reservations calls answered from the reservation cache, 0 when
+   * it is off or unused.
+   */
+  public double getReservationCacheHitRatio() {
+    ReservationCache cache = reservationCache;
+    if (cache == null) {
+      return 0;
+    }
+    long hits = cache.hits.sum();
+    long total = hits + cache.misses.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Number of users whose listing was dropped from the reservation cache to stay within
+   * maxBytes.
+   */
+  public long getReservationCacheEvictions() {
+    ReservationCache cache = reservationCache;
+    return cache == null ? 0 : cache.evictions.sum();
+  }
+
+  /**
+   * Commits the writes of transaction_book and transaction_pay in batches: one committer
+   * thread collects the writes of concurrent sessions for up to maxWaitMicros after the first
+   * one arrives, or until maxBatch have arrived, and runs them as one transaction with one
+   * commit. Each caller still gets the result of its own write. If the batch fails, it is
+   * split in halves and each half is committed again, until the failing write fails alone.
+   */
+  public void enableGroupCommit(int maxBatch, long maxWaitMicros) {
+    GroupCommit previous = groupCommit;
+    groupCommit = new GroupCommit(maxBatch, maxWaitMicros);
+    if (previous != null) {
+      previous.stop();
+    }
+  }
+
+  /**
+   * Stops batching writes. Writes already waiting for a batch are committed first.
+   */
+  public void disableGroupCommit() {
+    GroupCommit previous = groupCommit;
+    groupCommit = null;
+    if (previous != null) {
+      previous.stop();
+    }
+  }
+
+  /**
+   * Number of batches the group commit has gathered, 0 when it is off.
+   */
+  public long getGroupCommitBatches() {
+    GroupCommit group = groupCommit;
+    return group == null ? 0 : group.batches.sum();
+  }
+
+  /**
+   * Mean number of writes per group commit batch, 0 when it is off or unused.
+   */
+  public double getGroupCommitMeanBatchSize() {
+    GroupCommit group = groupCommit;
+    if (group == null) {
+      return 0;
+    }
+    long batches = group.batches.sum();
+    return batches == 0 ? 0 : (double) group.writes.sum() / batches;
+  }
+
+  /**
+   * Largest group commit batch so far, 0 when it is off.
+   */
+  public int getGroupCommitMaxBatchSize() {
+    GroupCommit group = groupCommit;
+    return group == null ? 0 : group.largestBatch.get();
+  }
+
+  /**
+   * Number of group commit batches that failed and were split to isolate the failing write.
+   */
+  public long getGroupCommitSplits() {
+    GroupCommit group = groupCommit;
+    return group == null ? 0 : group.splits.sum();
+  }
+
+  /**
+   * Number of writes the group commit failed on their own, after splitting isolated them.
+   */
+  public long getGroupCommitFailures() {
+    GroupCommit group = groupCommit;
+    return group == null ? 0 : group.failures.sum();
+  }
+
+  /**
+   * Message of the error that failed the most recent group commit write, null if none has.
+   */
+  public String getGroupCommitLastFailure() {
+    GroupCommit group = groupCommit;
+    SQLException failure = group == null ? null : group.lastFailure;
+    return failure == null ? null : failure.getSQLState() + " " + failure.getMessage();
+  }
+
+  /**
+   * Number of bookings that failed on a database error, not counting full flights and
+   * same-day conflicts.
+   */
+  public long getBookingFailures() {
+    return metrics.bookingFailures.sum();
+  }
+
+  /**
+   * Message of the error that failed the most recent booking, null if none has.
+   */
+  public String getBookingLastFailure() {
+    SQLException failure = metrics.lastBookingFailure;
+    return failure == null ? null : failure.getSQLState() + " " + failure.getMessage();
+  }
+
+  /**
+   * Puts the transaction_* methods behind a concurrency limit and a queue of at most
+   * queueLength waiting requests per transaction class: ADMIT_SEARCH for the searches,
+   * ADMIT_BOOK, ADMIT_PAY, ADMIT_CANCEL, and ADMIT_ACCOUNT for login, createCustomer and
+   * reservations. A request that finds its queue full, or is not admitted within
+   * maxWaitMillis, returns BUSY without running. Bookings, payments and cancellations may use
+   * all connections, normally the pool size. Searches and the account class together use at
+   * most connections minus a quarter kept for them, so they can never hold every connection
+   * (with 3 or more connections). Each limit then follows the latency of its class, see
+   * AdmissionControl.
+   */
+  public void enableAdmissionControl(int connections, int queueLength, long maxWaitMillis) {
+    admissionControl = new AdmissionControl(connections, queueLength, maxWaitMillis);
+  }
+
+  /**
+   * Admits every transaction again. Transactions already admitted finish normally.
+   */
+  public void disableAdmissionControl() {
+    admissionControl = null;
+  }
+
+  /**
+   * Current concurrency limit of the transaction class, one of the ADMIT_* constants; 0 when
+   * admission control is off.
+   */
+  public int getAdmissionLimit(int transactionClass) {
+    AdmissionControl admission = admissionControl;
+    return admission == null ? 0 : admission.gates[transactionClass].limit();
+  }
+
+  /**
+   * Requests of the transaction class waiting for admission.
+   */
+  public int getAdmissionQueued(int transactionClass) {
+    AdmissionControl admission = admissionControl;
+    return admission == null ? 0 : admission.gates[transactionClass].queued();
+  }
+
+  /**
+   * Requests of the transaction class that returned BUSY.
+   */
+  public long getAdmissionRejected(int transactionClass) {
+    AdmissionControl admission = admissionControl;
+    return admission == null ? 0 : admission.gates[transactionClass].rejected.sum();
+  }
+
+  /**
+   * Requests of every transaction class that returned BUSY.
+   */
+  public long getAdmissionRejected() {
+    long rejected = 0;
+    for (int c = 0; c < ADMISSION_CLASSES; c++) {
+      rejected += getAdmissionRejected(c);
+    }
+    return rejected;
+  }
+
+  /**
+   * Waits for admission of a transaction of the class. Returns null if it was turned away.
+   */
+  private Permit admit(int transactionClass) {
+    AdmissionControl admission = admissionControl;
+    if (admission == null) {
+      return unlimited;
+    }
+    AdmissionControl.Gate gate = admission.gates[transactionClass];
+    return gate.acquire() ? new Permit(gate, System.nanoTime()) : null;
+  }
+
+  /**
+   * Takes a user's username and password and attempts to log the user in.
+   * If someone has already logged in, then returns "User already logged in" For all other
+   * errors, returns "Login failed". Otherwise, returns "Logged in as [username]".
+   */
+  public String transaction_login(String username, String password) {
+    return transaction_login(defaultSession, username, password);
+  }
+
+  public String transaction_login(Session session, String username, String password) {
+    Permit permit = admit(ADMIT_ACCOUNT);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return login(session, username, password);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String login(Session session, String username, String password) {
+    long start = System.nanoTime();
+    String match = "SELECT username FROM Users WHERE username = ? AND password = ?";
+    String username_lower = username.toLowerCase();
+    PooledConnection pc = null;
+    
+  	try {
+  	  if (session.logged_in) {
+  		  return "User already logged in\n";
+  	  }
+  	  // Hash on the hashing executor before taking a connection from the pool
+  	  byte[] password_hash = hasher.hash(password).get();
+
+  	  pc = pool.acquire();
+  	  PreparedStatement login = pc.statements.get("login.match", match);
+      login.setString(1, username_lower);
+  	  login.setBytes(2, password_hash);
+      ResultSet rs = executeQuery(pc, login);
+      if (rs.next()) {
+    	  session.logged_in = true;
+    	  session.logged_user = username_lower;
+    	  return "Logged in as " + username + "\n";
+      }
+      } catch (Exception e){
+        return "Login failed\n";
+      } finally {
+        release(pc, metrics.login, start);
+      }
+  	return "Login failed\n";
+  }
+
+  /**
+   * Implement the create user function, with specified username, password, and initial amount
+   * to deposit into account.
+   * Returns created username success or failure if initial deposit is less than zero or if
+   * username is not unique.
+   */
+  public String transaction_createCustomer(String username, String password, int initAmount) {
+    return transaction_createCustomer(defaultSession, username, password, initAmount);
+  }
+
+  public String transaction_createCustomer(Session session, String username, String password, int initAmount) {
+    Permit permit = admit(ADMIT_ACCOUNT);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return createCustomer(session, username, password, initAmount);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String createCustomer(Session session, String username, String password, int initAmount) {
+    long start = System.nanoTime();
+  	if (initAmount < 0) {
+  		return "Failed to create user\n";
+  	}
+  	String username_lower = username.toLowerCase();
+  	String username_taken = "SELECT username FROM Users WHERE username = ?";
+  	String create = "INSERT INTO Users(username, password, balance) Values(?, ?, ?)";
+  	PooledConnection pc = null;
+  	
+    try {
+    	// A taken name fails before the password is hashed; the connection goes back during the hash
+    	pc = pool.acquire();
+    	PreparedStatement ps1 = pc.statements.get("createCustomer.username_taken", username_taken);
+    	ps1.setString(1, username_lower);
+    	ResultSet rs = executeQuery(pc, ps1);
+    	boolean taken = rs.next();
+    	rs.close();
+    	if (taken) {
+    		return "Failed to create user\n";
+    	}
+    	checkDanglingTransaction(pc);
+    	pc.owner.release(pc);
+    	pc = null;
+
+    	// Hash on the hashing executor without holding a connection from the pool
+    	byte[] hash = hasher.hash(password).get();
+
+    	// the other shards' copies go first, so a user on the home database can always book;
+    	// a copy left by a name that turns out to be taken belongs to that name's user anyway
+    	for (int i = 1; i < shards.length; i++) {
+    		copyUser(shards[i], username, hash);
+    	}
+
+    	// a concurrent createCustomer may have taken the name since; the primary key then fails the insert
+    	pc = pool.acquire();
+    	PreparedStatement ps2 = pc.statements.get("createCustomer.create", create);
+    	ps2.setString(1, username);
+    	ps2.setBytes(2, hash);
+    	ps2.setInt(3, initAmount);
+    	// a single insert is atomic on its own; no transaction needed
+    	executeUpdate(pc, ps2);
+    } catch (Exception e) {
+      	try {
+      		rollback(pc);
+      		return "Failed to create user\n";
+      	} catch (Exception e2) {
+      		return "Transaction failed, rolling back database";
+      	}
+    } finally {
+      release(pc, metrics.createCustomer, start);
+    }
+    return "Created user " + username + "\n";
+  }
+
+  /**
+   * Inserts the user row on a shard other than the home database, unless a failed attempt
+   * already left it there. Only the Reservations foreign key reads the copy; logins and
+   * balances always go to the home database.
+   */
+  private void copyUser(Shard shard, String username, byte[] hash) throws SQLException {
+    String copy = "INSERT INTO Users(username, password, balance) SELECT ?, ?, 0"
+        + " WHERE NOT EXISTS (SELECT 1 FROM Users WHERE username = ?)";
+    PooledConnection pc = shard.pool.acquire();
+    try {
+      PreparedStatement ps = pc.statements.get("createCustomer.copy", copy);
+      ps.setString(1, username);
+      ps.setBytes(2, hash);
+      ps.setString(3, username);
+      executeUpdate(pc, ps);
+    } finally {
+      pc.owner.release(pc);
+    }
+  }
+
+  /**
+   * One search result: a direct flight, or a chain of connecting flights on the same day.
+   * The text shown to the user is only built for the itineraries a search returns.
+   */
+  class Itinerary {
+	  int flight_time;
+	  int fid1;
+	  int fid2;
+	  int day;
+	  Flight[] legs;
+	  
+	  public Itinerary(int flight_time, Flight... legs){
+		  this.flight_time = flight_time;
+		  this.fid1 = legs[0].fid;
+		  this.fid2 = legs.length > 1 ? legs[1].fid : -1;
+		  this.day = legs[0].dayOfMonth;
+		  this.legs = legs;
+	  }
+	  
+	  /**
+	   * Appends the itinerary as transaction_search prints it. The searched city names are
+	   * printed for the two ends, as they were typed.
+	   */
+	  public void appendInfo(StringBuilder sb, String originCity, String destinationCity) {
+		  sb.append(legs.length).append(" flight(s), ").append(flight_time).append(" minutes\n");
+		  for (int i = 0; i < legs.length; i++) {
+			  String from = i == 0 ? originCity : legs[i - 1].destCity;
+			  String to = i == legs.length - 1 ? destinationCity : legs[i].destCity;
+			  legs[i].appendTo(sb, from, to);
+			  sb.append("\n");
+		  }
+	  }
+	  
+	  /**
+	   * Fids of all legs, in flying order.
+	   */
+	  public int[] getFids() {
+		  int[] fids = new int[legs.length];
+		  for (int i = 0; i < legs.length; i++) {
+			  fids[i] = legs[i].fid;
+		  }
+		  return fids;
+	  }
+	  
+	  public int getFid1() {
+		  return this.fid1;
+	  }
+	  
+	  public int getFid2() {
+		  return this.fid2;
+	  }
+	  
+	  public int getDay() {
+	  	return this.day;
+	  }
+	  
+  }
+  
+  /**
+   * Implement the search function.
+   *
+   * Searches for flights from the given origin city to the given destination city, on the given day
+   * of the month. If directFlight = true, it only searches for direct flights, otherwise
+   * is searches for direct flights and indirect flights. Only searches for up to the number
+   * of itineraries given by the argument "numberOfItineraries".
+   *
+   * The results are sorted based on total flight time.
+   **/
+ 
+  
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries) {
+    return transaction_search(defaultSession, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+  }
+
+  public String transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries) {
+    return transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, false);
+  }
+
+  /**
+   * Like transaction_search; with availableOnly, flights this Query knows to be sold out are
+   * left out, direct ones and either leg of a connection, before the shortest are picked.
+   * Such searches run on the index of loadFlightIndex, or else on the private index of
+   * transaction_searchRoutes, and on the availability bitsets loaded on first use. They
+   * bypass the search cache and leave plain searches on SQL.
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, boolean availableOnly) {
+    return transaction_search(defaultSession, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+        availableOnly);
+  }
+
+  public String transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, boolean availableOnly) {
+    Permit permit = admit(ADMIT_SEARCH);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, availableOnly);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String search(Session session, String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, boolean availableOnly) {
+    long start = System.nanoTime();
+	  
+	  // The session's list is replaced once the new one is sorted, so a concurrent book never sees a partial list
+	  session.SortedList = Collections.emptyList();
+	  PooledConnection pc = null;
+    String direct = "SELECT TOP (?) carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
+      	+ "fid, day_of_month FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0"
+      	+ " ORDER BY actual_time ASC, fid ASC";
+      
+    try {
+      if (availableOnly) {
+        // the index is searchRoutes' one, so plain searches stay on SQL unless loadFlightIndex was called
+        FlightIndex index = searchIndex();
+        Availability open = availability;
+        if (open == null) {
+          synchronized (indexLock) {
+            if (availability == null) {
+              loadAvailability();
+            }
+            open = availability;
+          }
+        }
+        SearchResults results = new SearchResults(numberOfItineraries, directFlight, dayOfMonth);
+        index.direct(results, originCity, destinationCity, dayOfMonth, numberOfItineraries, open);
+        if (!directFlight) {
+          index.oneStop(results, originCity, destinationCity, dayOfMonth,
+              numberOfItineraries - results.directRows(), open);
+        }
+        return formatItineraries(session, results.take(numberOfItineraries), originCity, destinationCity);
+      }
+      SearchCache cache = searchCache;
+      String key = null;
+      long generation = 0;
+      if (cache != null) {
+        key = cache.key(originCity, destinationCity, directFlight, dayOfMonth);
+        generation = cache.generation();
+        SearchResults cached = cache.get(key, numberOfItineraries);
+        if (cached != null) {
+          return formatItineraries(session, cached.take(numberOfItineraries), originCity, destinationCity);
+        }
+      }
+      // With a cache, fetch a few more rows than asked so the entry also serves larger requests
+      int limit = cache == null ? numberOfItineraries : Math.max(numberOfItineraries, SearchCache.MIN_FETCH);
+      SearchResults results = new SearchResults(limit, directFlight, dayOfMonth);
+
+      if (flightIndex != null) {
+        flightIndex.direct(results, originCity, destinationCity, dayOfMonth, limit);
+        if (!directFlight) {
+          flightIndex.oneStop(results, originCity, destinationCity, dayOfMonth,
+              cache == null ? limit - results.directRows() : limit);
+        }
+        if (cache != null) {
+          cache.put(key, results, generation);
+        }
+        return formatItineraries(session, results.take(numberOfItineraries), originCity, destinationCity);
+      }
+      pc = shardOfDay(dayOfMonth).pool.acquire();
+      PreparedStatement search = pc.statements.get("search.direct", direct);
+      search.setInt(1, limit);
+      search.setString(2, originCity);
+      search.setString(3, destinationCity);
+      search.setInt(4, dayOfMonth);
+      ResultSet rs1 = executeQuery(pc, search);
+
+      // The direct rows are read first, since the one-stop limit depends on their count and a
+      // connection streams one result set at a time; the one-stop rows are merged in as read
+      while (rs1.next()) {
+        results.addDirect(results.addLeg(rs1.getInt(8), rs1.getString(1), rs1.getInt(2), rs1.getString(3),
+            rs1.getString(4), rs1.getInt(5), rs1.getInt(6), rs1.getInt(7)));
+      }
+      rs1.close();
+      if (!directFlight) {
+        int remaining = cache == null ? limit - results.directRows() : limit;
+        String indirect = "SELECT TOP (?) F1.fid, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city,"
+      			+ " F1.actual_time, F1.capacity, F1.price, F2.fid, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time,"
+      			+ " F2.capacity, F2.price, (F1.actual_time + F2.actual_time) AS total_duration FROM FLIGHTS F1 JOIN"
+      			+ " FLIGHTS F2 ON F1.day_of_month = F2.day_of_month WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ?"
+      			+ " AND F1.canceled = 0 AND F2.canceled = 0 AND F1.day_of_month = ? ORDER BY total_duration ASC, F1.fid ASC, F2.fid ASC";
+        PreparedStatement search2 = pc.statements.get("search.indirect", indirect);
+        search2.setInt(1, remaining);
+        search2.setString(2, originCity);
+        search2.setString(3, destinationCity);
+        search2.setInt(4, dayOfMonth);
+        ResultSet rs2 = executeQuery(pc, search2);
+
+        while (rs2.next()) {
+          int leg1 = results.addLeg(rs2.getInt(1), rs2.getString(2), rs2.getInt(3), rs2.getString(4),
+              rs2.getString(5), rs2.getInt(6), rs2.getInt(7), rs2.getInt(8));
+          int leg2 = results.addLeg(rs2.getInt(9), rs2.getString(10), rs2.getInt(11), rs2.getString(12),
+              rs2.getString(13), rs2.getInt(14), rs2.getInt(15), rs2.getInt(16));
+          results.addOneStop(leg1, leg2);
+      	}
+      	rs2.close();
+      }
+      if (cache != null) {
+        cache.put(key, results, generation);
+      }
+      return formatItineraries(session, results.take(numberOfItineraries), originCity, destinationCity);
+    } catch (SQLException e) {
+    	return "Failed to search\n";
+    } finally {
+      release(pc, metrics.search, start);
+    }
+  }
+
+  /**
+   * Implements the route search: like transaction_search, but returns the numberOfItineraries
+   * shortest itineraries with up to maxStops connections, at most MAX_ROUTE_STOPS. No route
+   * visits a city twice. Routes are found in the flight index of loadFlightIndex, or without
+   * one in a private index built on first use; transaction_search does not switch to it.
+   */
+  public String transaction_searchRoutes(String originCity, String destinationCity, int maxStops,
+      int dayOfMonth, int numberOfItineraries) {
+    return transaction_searchRoutes(defaultSession, originCity, destinationCity, maxStops, dayOfMonth, numberOfItineraries);
+  }
+
+  public String transaction_searchRoutes(Session session, String originCity, String destinationCity, int maxStops,
+      int dayOfMonth, int numberOfItineraries) {
+    Permit permit = admit(ADMIT_SEARCH);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return searchRoutes(session, originCity, destinationCity, maxStops, dayOfMonth, numberOfItineraries);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String searchRoutes(Session session, String originCity, String destinationCity, int maxStops,
+      int dayOfMonth, int numberOfItineraries) {
+    long start = System.nanoTime();
+    session.SortedList = Collections.emptyList();
+    if (maxStops < 0 || maxStops > MAX_ROUTE_STOPS) {
+      return "Routes take between 0 and " + MAX_ROUTE_STOPS + " stops\n";
+    }
+    try {
+      RouteSearch search = new RouteSearch(searchIndex(), dayOfMonth, originCity, destinationCity, maxStops + 1,
+          numberOfItineraries);
+      return formatItineraries(session, search.run(), originCity, destinationCity);
+    } catch (SQLException e) {
+      return "Failed to search\n";
+    } finally {
+      metrics.searchRoutes.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Stores the itineraries of a search, already in total flight time order, as the session's
+   * last search and renders them.
+   */
+  private String formatItineraries(Session session, ArrayList<Itinerary> SortedList, String originCity,
+      String destinationCity) {
+    session.SortedList = SortedList;
+    if (SortedList.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+    StringBuilder sb = new StringBuilder(256 * SortedList.size());
+    for (int i = 0; i < SortedList.size(); i++) {
+      sb.append("Itinerary ").append(i).append(": ");
+      SortedList.get(i).appendInfo(sb, originCity, destinationCity);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Implements the book itinerary function.
+   *
+   * itineraryId ID of the itinerary to book. The itinerary ID is returned by the search in
+   * the current session.
+   * 
+   * User cannot book reserations without being logged in. User also cannot book an itinerary
+   * without having done a search. The user cannot book two seperate itineraries on the same day.
+   */
+  public String transaction_book(int itineraryId) {
+    return transaction_book(defaultSession, itineraryId);
+  }
+
+  public String transaction_book(Session session, int itineraryId) {
+    Permit permit = admit(ADMIT_BOOK);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return book(session, itineraryId);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String book(Session session, int itineraryId) {
+    long start = System.nanoTime();
+  	String book = "INSERT INTO Reservations(username, paid, cancelled, fid1, fid2) OUTPUT INSERTED.rid VALUES(?, 0, 0, ?, ?)";
+  	String check_day = "SELECT F1.fid FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT OUTER JOIN Flights F2 on R.fid1 = F2.fid" +
+  			" WHERE R.username = ? AND F1.day_of_month = ?";
+      
+    if (!session.logged_in) {
+      return "Cannot book reservations, not logged in\n";
+    }
+    
+    List<Itinerary> SortedList = session.SortedList;
+    if (SortedList.isEmpty()  || itineraryId >= SortedList.size()) {
+    	return "No such itinerary " + itineraryId + "\n";
+    }
+    
+    Itinerary itinerary = SortedList.get(itineraryId);
+    int day = itinerary.getDay();
+    int flight_1 = itinerary.getFid1();
+    int flight_2 = itinerary.getFid2();
+    int[] legs = itinerary.getFids();
+    Shard shard = shardOfDay(day);
+    PooledConnection pc = null;
+
+    // Flights this JVM recently saw sold out are rejected without a database round trip
+    for (int fid : legs) {
+      if (seats.soldOut(fid)) {
+        return "Booking failed\n";
+      }
+    }
+    
+  	try {
+  		pc = shard.pool.acquire();
+  		if (storedProcedures && legs.length <= MAX_ROUTE_STOPS + 1) {
+  			String result = bookByProcedure(pc, shard, session.logged_user, itinerary);
+  			if (result != null) {
+  				return result;
+  			}
+  		}
+      // With group commit on, the writes are committed together with those of other sessions,
+      // and the same-day check runs in that transaction; the connection goes back first so the
+      // committer can always get one
+      GroupCommit group = groupCommit;
+      if (group != null) {
+        checkDanglingTransaction(pc);
+        pc.owner.release(pc);
+        pc = null;
+        return group.submit(new GroupBooking(shard, session.logged_user, itinerary));
+      }
+
+  		PreparedStatement check = pc.statements.get("book.check_day", check_day);
+  		check.setString(1, session.logged_user);
+  		check.setInt(2, day);
+  		ResultSet rs_check = executeQuery(pc, check);
+  		if (rs_check.next()) {
+  			rs_check.close();
+  			return "You cannot book two flights in the same day\n";
+  		}
+  		rs_check.close();
+
+      // The seat claims are conditional writes, so no capacity is read before them; a
+      // deadlock or write conflict on a busy flight runs the transaction again
+      final int[] left = new int[legs.length];
+      Integer reserved = inTransaction(pc, new TransactionWork<Integer>() {
+        public Integer run(PooledConnection tx) throws SQLException {
+          // take a seat on each leg; a full leg rolls back the whole booking
+          for (int i = 0; i < legs.length; i++) {
+            left[i] = claimSeat(tx, legs[i]);
+            if (left[i] < 0) {
+              rollback(tx);
+              return null;
+            }
+          }
+
+          PreparedStatement reserve = tx.statements.get("book.reserve", book);
+          reserve.setString(1, session.logged_user);
+          reserve.setInt(2, flight_1);
+          if (flight_2 == -1) {
+          	reserve.setNull(3, java.sql.Types.INTEGER);
+          } else {
+          	reserve.setInt(3, flight_2);
+          }
+          ResultSet rs = executeQuery(tx, reserve);
+          int reserved_id = -1;
+          if (rs.next()) {
+          	reserved_id = rs.getInt(1);
+          }
+          rs.close();
+          insertLaterLegs(tx, reserved_id, legs);
+          return reserved_id;
+        }
+      });
+      if (reserved == null) {
+        // the first leg without a seat is the one that was full
+        for (int i = 0; i < legs.length; i++) {
+          if (left[i] < 0) {
+            seats.observe(legs[i], 0);
+            break;
+          }
+        }
+        return "Booking failed\n";
+      }
+      for (int i = 0; i < legs.length; i++) {
+        seatsTaken(legs[i], left[i]);
+      }
+      int reserved_id = globalRid(shard, reserved);
+      ReservationCache views = reservationCache;
+      if (views != null) {
+        views.booked(session.logged_user, reserved_id, itinerary);
+      }
+      return "Booked flight(s), reservation ID: " + reserved_id + "\n";
+    } catch (SQLException e) {
+    	metrics.bookingFailed(e);
+    	try {
+    		rollback(pc);
+    	} catch (Exception e2) {
+    		return "Rollback failed";
+    	}
+      return "Booking failed\n";
+    } finally {	
+      release(pc, metrics.book, start);
+    }
+  }
+
+  /**
+   * Implements group booking: books every itinerary in itineraryIds from the last search, for
+   * example one per traveller, as one transaction. Either every itinerary is booked or none
+   * is. The ids may repeat to book several seats on the same itinerary.
+   *
+   * The same-day rule applies against the user's existing reservations only, since all the
+   * itineraries of one search are on the same day. Seats for every leg are checked and taken
+   * with one statement, and all reservations are inserted with one statement that returns
+   * their rids.
+   */
+  public String transaction_bookGroup(int[] itineraryIds) {
+    return transaction_bookGroup(defaultSession, itineraryIds);
+  }
+
+  public String transaction_bookGroup(Session session, int[] itineraryIds) {
+    Permit permit = admit(ADMIT_BOOK);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return bookGroup(session, itineraryIds);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String bookGroup(Session session, int[] itineraryIds) {
+    long start = System.nanoTime();
+    String check_day = "SELECT F1.fid FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT OUTER JOIN Flights F2 on R.fid1 = F2.fid" +
+        " WHERE R.username = ? AND F1.day_of_month = ?";
+
+    if (!session.logged_in) {
+      return "Cannot book reservations, not logged in\n";
+    }
+    if (itineraryIds.length == 0 || itineraryIds.length > MAX_GROUP_SIZE) {
+      return "Group bookings take between 1 and " + MAX_GROUP_SIZE + " itineraries\n";
+    }
+    List<Itinerary> SortedList = session.SortedList;
+    Itinerary[] group = new Itinerary[itineraryIds.length];
+    LinkedHashMap<Integer, Integer> seats_needed = new LinkedHashMap<Integer, Integer>();
+    for (int i = 0; i < itineraryIds.length; i++) {
+      if (itineraryIds[i] < 0 || itineraryIds[i] >= SortedList.size()) {
+        return "No such itinerary " + itineraryIds[i] + "\n";
+      }
+      group[i] = SortedList.get(itineraryIds[i]);
+      for (int fid : group[i].getFids()) {
+        if (seats.soldOut(fid)) {
+          return "Booking failed\n";
+        }
+        Integer n = seats_needed.get(fid);
+        seats_needed.put(fid, n == null ? 1 : n + 1);
+      }
+    }
+    int day = group[0].getDay();
+    Shard shard = shardOfDay(day);
+    PooledConnection pc = null;
+
+    try {
+      pc = shard.pool.acquire();
+      PreparedStatement check = pc.statements.get("bookGroup.check_day", check_day);
+      check.setString(1, session.logged_user);
+      check.setInt(2, day);
+      ResultSet rs_check = executeQuery(pc, check);
+      if (rs_check.next()) {
+        rs_check.close();
+        return "You cannot book two flights in the same day\n";
+      }
+      rs_check.close();
+
+      // a deadlock or write conflict on a busy flight runs the transaction again
+      final int[] rids = new int[group.length];
+      HashMap<Integer, Integer> seats_left = inTransaction(pc, new TransactionWork<HashMap<Integer, Integer>>() {
+        public HashMap<Integer, Integer> run(PooledConnection tx) throws SQLException {
+          // take every seat the group needs in one statement; any full leg rolls back the group
+          HashMap<Integer, Integer> seats_left = new HashMap<Integer, Integer>();
+          if (sqlServer) {
+            PreparedStatement claim = tx.statements.get("bookGroup.claim", claimSeatsSql(seats_needed.size()));
+            int param = 1;
+            for (Map.Entry<Integer, Integer> e : seats_needed.entrySet()) {
+              claim.setInt(param++, e.getKey());
+              claim.setInt(param++, e.getValue());
+            }
+            ResultSet rs_claim = executeQuery(tx, claim);
+            while (rs_claim.next()) {
+              seats_left.put(rs_claim.getInt(1), rs_claim.getInt(2));
+            }
+            rs_claim.close();
+          } else {
+            // UPDATE ... FROM a joined table is T-SQL only; elsewhere one claim per flight
+            for (Map.Entry<Integer, Integer> e : seats_needed.entrySet()) {
+              int left = claimSeats(tx, e.getKey(), e.getValue());
+              if (left >= 0) {
+                seats_left.put(e.getKey(), left);
+              }
+            }
+          }
+          if (seats_left.size() != seats_needed.size()) {
+            rollback(tx);
+            return seats_left;
+          }
+
+          PreparedStatement reserve = tx.statements.get("bookGroup.reserve", insertReservationsSql(group.length));
+          int param = 1;
+          for (Itinerary it : group) {
+            reserve.setString(param++, session.logged_user);
+            reserve.setInt(param++, it.getFid1());
+            if (it.getFid2() == -1) {
+              reserve.setNull(param++, java.sql.Types.INTEGER);
+            } else {
+              reserve.setInt(param++, it.getFid2());
+            }
+          }
+          // OUTPUT rows are not ordered, so hand the rids out by matching legs
+          ArrayList<int[]> inserted = new ArrayList<int[]>();
+          ResultSet rs = executeQuery(tx, reserve);
+          while (rs.next()) {
+            int fid2 = rs.getInt(3);
+            inserted.add(new int[] {rs.getInt(1), rs.getInt(2), rs.wasNull() ? -1 : fid2});
+          }
+          rs.close();
+          // Rows with the same first two legs are alike until their later legs are written, so
+          // whichever of them an itinerary is matched with becomes its reservation
+          for (int g = 0; g < group.length; g++) {
+            for (int i = 0; i < inserted.size(); i++) {
+              int[] row = inserted.get(i);
+              if (row[1] == group[g].getFid1() && row[2] == group[g].getFid2()) {
+                rids[g] = globalRid(shard, row[0]);
+                insertLaterLegs(tx, row[0], group[g].getFids());
+                inserted.remove(i);
+                break;
+              }
+            }
+          }
+          return seats_left;
+        }
+      });
+      if (seats_left.size() != seats_needed.size()) {
+        for (int fid : seats_needed.keySet()) {
+          if (!seats_left.containsKey(fid)) {
+            seats.observe(fid, 0);
+          }
+        }
+        return "Booking failed\n";
+      }
+      for (Map.Entry<Integer, Integer> e : seats_left.entrySet()) {
+        seatsTaken(e.getKey(), e.getValue());
+      }
+      StringBuffer sb = new StringBuffer("Booked flight(s), reservation IDs:");
+      ReservationCache views = reservationCache;
+      for (int g = 0; g < group.length; g++) {
+        sb.append(" " + rids[g]);
+        if (views != null) {
+          views.booked(session.logged_user, rids[g], group[g]);
+        }
+      }
+      return sb.append("\n").toString();
+    } catch (SQLException e) {
+      metrics.bookingFailed(e);
+      try {
+        rollback(pc);
+      } catch (Exception e2) {
+        return "Rollback failed";
+      }
+      return "Booking failed\n";
+    } finally {
+      release(pc, metrics.bookGroup, start);
+    }
+  }
+
+  /**
+   * Conditional increment of SeatInventory for a number of (fid, seats) parameter pairs.
+   * Returns a row of (fid, seats left) for every flight that had enough seats.
+   */
+  private String claimSeatsSql(int flights) {
+    StringBuffer sb = new StringBuffer("UPDATE S SET booked = S.booked + D.seats"
+        + " OUTPUT INSERTED.fid, INSERTED.capacity - INSERTED.booked FROM SeatInventory S JOIN (VALUES ");
+    for (int i = 0; i < flights; i++) {
+      sb.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+    }
+    return sb.append(") AS D(fid, seats) ON S.fid = D.fid WHERE S.booked + D.seats <= S.capacity").toString();
+  }
+
+  /**
+   * Multi-row insert into Reservations for a number of (username, fid1, fid2) parameter
+   * triples, returning (rid, fid1, fid2) for each inserted row.
+   */
+  private String insertReservationsSql(int rows) {
+    StringBuffer sb = new StringBuffer("INSERT INTO Reservations(username, paid, cancelled, fid1, fid2)"
+        + " OUTPUT INSERTED.rid, INSERTED.fid1, INSERTED.fid2 VALUES ");
+    for (int i = 0; i < rows; i++) {
+      sb.append(i == 0 ? "(?, 0, 0, ?, ?)" : ", (?, 0, 0, ?, ?)");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Books itinerary for user with the BookItinerary procedure of the day's shard. Returns the
+   * result of transaction_book, or null if the procedure is not installed.
+   */
+  private String bookByProcedure(PooledConnection pc, Shard shard, String user, Itinerary itinerary) {
+    String call = "EXEC BookItinerary ?, ?, ?, ?, ?, ?";
+    int[] legs = itinerary.getFids();
+    for (int attempt = 1; ; attempt++) {
+      try {
+        PreparedStatement book = pc.statements.get("book.procedure", call);
+        book.setString(1, user);
+        book.setInt(2, itinerary.getDay());
+        for (int i = 0; i < MAX_ROUTE_STOPS + 1; i++) {
+          if (i < legs.length) {
+            book.setInt(3 + i, legs[i]);
+          } else {
+            book.setNull(3 + i, java.sql.Types.INTEGER);
+          }
+        }
+        int status = -1;
+        int rid = -1;
+        ArrayList<int[]> seats_left = new ArrayList<int[]>();
+        ResultSet rs = executeQuery(pc, book);
+        while (rs.next()) {
+          status = rs.getInt(1);
+          rid = rs.getInt(2);
+          seats_left.add(new int[] {rs.getInt(3), rs.getInt(4)});
+        }
+        rs.close();
+        if (status == 1) {
+          return "You cannot book two flights in the same day\n";
+        }
+        if (status != 0) {
+          for (int[] row : seats_left) {
+            seats.observe(row[0], 0);
+          }
+          return "Booking failed\n";
+        }
+        for (int[] row : seats_left) {
+          seatsTaken(row[0], row[1]);
+        }
+        rid = globalRid(shard, rid);
+        ReservationCache views = reservationCache;
+        if (views != null) {
+          views.booked(user, rid, itinerary);
+        }
+        return "Booked flight(s), reservation ID: " + rid + "\n";
+      } catch (SQLException e) {
+        if (procedureMissing(e)) {
+          return null;
+        }
+        if (!retryProcedure(pc, e, attempt)) {
+          metrics.bookingFailed(e);
+          return "Booking failed\n";
+        }
+      }
+    }
+  }
+
+  /**
+   * Pays reservation rid of user with the PayReservation procedure. Returns the result of
+   * transaction_pay, or null if the procedure is not installed. The procedure reads the
+   * balance next to the reservation, so only reservations on the home database use it.
+   */
+  private String payByProcedure(PooledConnection pc, String user, int rid) {
+    String call = "EXEC PayReservation ?, ?";
+    for (int attempt = 1; ; attempt++) {
+      try {
+        PreparedStatement pay = pc.statements.get("pay.procedure", call);
+        pay.setString(1, user);
+        pay.setInt(2, localRid(rid));
+        ResultSet rs = executeQuery(pc, pay);
+        int status = -1;
+        int balance = 0;
+        int price = 0;
+        if (rs.next()) {
+          status = rs.getInt(1);
+          balance = rs.getInt(2);
+          price = rs.getInt(3);
+        }
+        rs.close();
+        if (status == 0) {
+          ReservationCache views = reservationCache;
+          if (views != null) {
+            views.paid(user, rid);
+          }
+          return "Paid reservation: " + rid + " remaining balance: " + balance + "\n";
+        } else if (status == 2) {
+          return "User has only " + balance + " in account but itinerary costs " + price + "\n";
+        }
+        return "Cannot find unpaid reservation " + rid + " under user: " + user + "\n";
+      } catch (SQLException e) {
+        if (procedureMissing(e)) {
+          return null;
+        }
+        if (!retryProcedure(pc, e, attempt)) {
+          return "Failed to pay for reservation " + rid + "\n";
+        }
+      }
+    }
+  }
+
+  /**
+   * Cancels reservation rid of user with the CancelReservation procedure. Returns the
+   * result of transaction_cancel, or null if the procedure is not installed. Like
+   * payByProcedure, only for reservations on the home database.
+   */
+  private String cancelByProcedure(PooledConnection pc, String user, int rid) {
+    String call = "EXEC CancelReservation ?, ?";
+    for (int attempt = 1; ; attempt++) {
+      try {
+        PreparedStatement cancel = pc.statements.get("cancel.procedure", call);
+        cancel.setString(1, user);
+        cancel.setInt(2, localRid(rid));
+        int status = -1;
+        ArrayList<int[]> seats_left = new ArrayList<int[]>();
+        ResultSet rs = executeQuery(pc, cancel);
+        while (rs.next()) {
+          status = rs.getInt(1);
+          if (rs.getInt(2) != -1) {
+            seats_left.add(new int[] {rs.getInt(2), rs.getInt(3)});
+          }
+        }
+        rs.close();
+        if (status != 0) {
+          return "Failed to cancel reservation " + rid + "\n";
+        }
+        for (int[] row : seats_left) {
+          seatsReleased(row[0], row[1]);
+        }
+        ReservationCache views = reservationCache;
+        if (views != null) {
+          views.cancelled(user, rid);
+        }
+        return "Canceled reservation " + rid + "\n";
+      } catch (SQLException e) {
+        if (procedureMissing(e)) {
+          return null;
+        }
+        if (!retryProcedure(pc, e, attempt)) {
+          return "Failed to cancel reservation " + rid + "\n";
+        }
+      }
+    }
+  }
+
+  /**
+   * True if e says a stored procedure does not exist (error 2812). Switches back to the JDBC
+   * statements, so the caller can run the transaction that way.
+   */
+  private boolean procedureMissing(SQLException e) {
+    if (e.getErrorCode() != 2812) {
+      return false;
+    }
+    // usingStoredProcedures() shows the switch
+    storedProcedures = false;
+    return true;
+  }
+
+  /**
+   * retryConflict for a procedure call, which rolls back on the server by itself. Returns
+   * false instead of throwing.
+   */
+  private boolean retryProcedure(PooledConnection pc, SQLException e, int attempt) {
+    try {
+      return retryConflict(pc, e, attempt);
+    } catch (SQLException e2) {
+      return false;
+    }
+  }
+
+  /**
+   * Called when attempt number attempt of a transaction on pc failed with e. If e is a
+   * deadlock or write conflict and attempts are left, rolls back any open transaction, waits a random time of up
+   * to BACKOFF_MS * 2^(attempt-1) and returns true to run the transaction again. Returns
+   * false if e should be handled as a failure.
+   */
+  private boolean retryConflict(PooledConnection pc, SQLException e, int attempt) throws SQLException {
+    if (!isConflict(e)) {
+      return false;
+    }
+    metrics.conflicts.increment();
+    if (attempt >= MAX_ATTEMPTS) {
+      metrics.retriesExhausted.increment();
+      return false;
+    }
+    rollback(pc);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(1, (BACKOFF_MS << (attempt - 1)) + 1));
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    metrics.retries.increment();
+    return true;
+  }
+
+  /**
+   * True if e means the transaction lost a race with another one and may succeed if run
+   * again: a deadlock victim (error 1205), a lock request timeout (1222), or any
+   * serialization failure (SQLState class 40).
+   */
+  static boolean isConflict(SQLException e) {
+    for (SQLException at = e; at != null; at = at.getNextException()) {
+      if (at instanceof SQLTransactionRollbackException || at.getErrorCode() == 1205 || at.getErrorCode() == 1222
+          || (at.getSQLState() != null && at.getSQLState().startsWith("40"))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stores the legs after the second of a reservation in ReservationLegs, within the
+   * caller's transaction. Reservations of one or two legs have none.
+   */
+  private void insertLaterLegs(PooledConnection pc, int rid, int[] legs) throws SQLException {
+    String insert = "INSERT INTO ReservationLegs(rid, leg, fid) VALUES(?, ?, ?)";
+    for (int i = 2; i < legs.length; i++) {
+      PreparedStatement ps = pc.statements.get("reservationLegs.insert", insert);
+      ps.setInt(1, rid);
+      ps.setInt(2, i + 1);
+      ps.setInt(3, legs[i]);
+      executeUpdate(pc, ps);
+    }
+  }
+
+  /**
+   * Takes one seat on the given flight within the caller's transaction, by a conditional
+   * increment of its SeatInventory counter. Returns the seats left afterwards, or -1 if the
+   * flight is already full.
+   */
+  private int claimSeat(PooledConnection pc, int fid) throws SQLException {
+    String claim = "UPDATE SeatInventory SET booked = booked + 1 OUTPUT INSERTED.capacity - INSERTED.booked"
+        + " WHERE fid = ? AND booked < capacity";
+    PreparedStatement ps = pc.statements.get("seats.claim", claim);
+    ps.setInt(1, fid);
+    ResultSet rs = executeQuery(pc, ps);
+    try {
+      return rs.next() ? rs.getInt(1) : -1;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Takes n seats on the given flight within the caller's transaction, for group bookings on
+   * databases without UPDATE ... FROM. Returns the seats left afterwards, or -1 if the flight
+   * has fewer than n seats left.
+   */
+  private int claimSeats(PooledConnection pc, int fid, int n) throws SQLException {
+    String claim = "UPDATE SeatInventory SET booked = booked + ? OUTPUT INSERTED.capacity - INSERTED.booked"
+        + " WHERE fid = ? AND booked + ? <= capacity";
+    PreparedStatement ps = pc.statements.get("bookGroup.claim", claim);
+    ps.setInt(1, n);
+    ps.setInt(2, fid);
+    ps.setInt(3, n);
+    ResultSet rs = executeQuery(pc, ps);
+    try {
+      return rs.next() ? rs.getInt(1) : -1;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Gives back one seat on the given flight within the caller's transaction. Returns the
+   * seats left afterwards, or -1 if the flight had no seat booked.
+   */
+  private int releaseSeat(PooledConnection pc, int fid) throws SQLException {
+    String release = "UPDATE SeatInventory SET booked = booked - 1 OUTPUT INSERTED.capacity - INSERTED.booked"
+        + " WHERE fid = ? AND booked > 0";
+    PreparedStatement ps = pc.statements.get("seats.release", release);
+    ps.setInt(1, fid);
+    ResultSet rs = executeQuery(pc, ps);
+    try {
+      return rs.next() ? rs.getInt(1) : -1;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Records the seats left on a flight after a committed booking.
+   */
+  private void seatsTaken(int fid, int left) {
+    seats.observe(fid, left);
+  }
+
+  /**
+   * Records the seats left on a flight after a committed cancellation.
+   */
+  private void seatsReleased(int fid, int left) {
+    if (left < 0) {
+      return;
+    }
+    seats.observe(fid, left);
+  }
+
+  /**
+   * Implements the pay function.
+   */
+  public String transaction_pay(int reservationId) {
+    return transaction_pay(defaultSession, reservationId);
+  }
+
+  public String transaction_pay(Session session, int reservationId) {
+    Permit permit = admit(ADMIT_PAY);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return pay(session, reservationId);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String pay(Session session, int reservationId) {
+    long start = System.nanoTime();
+    if (!session.logged_in) {
+    	return "Cannot pay, not logged in\n";
+    }
+    
+    boolean found = false;
+    String query = "SELECT U.username, U.balance, R.rid, R.paid, R.cancelled, F1.price, F2.price," +
+    		" (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLegs L JOIN Flights F ON L.fid = F.fid WHERE L.rid = R.rid)" +
+    		" FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid JOIN Users U on R.username = U.username" +
+    		" WHERE U.username = ? AND R.rid = ? AND R.cancelled = 0 AND R.paid = 0";
+    
+    String query2 = "UPDATE Reservations SET paid = 1 WHERE rid = ? AND paid = 0 AND cancelled = 0";
+    String query3 = "UPDATE Users SET balance = balance - ? OUTPUT INSERTED.balance WHERE username = ? AND balance >= ?";
+    Shard shard = shardOfReservation(reservationId);
+    PooledConnection pc = null;
+    // the home database's connection for the balance; pc itself when the reservation is there
+    PooledConnection home = null;
+    
+  	try {
+    	pc = shard.pool.acquire();
+    	home = shard == shards[0] ? pc : pool.acquire();
+    	if (storedProcedures && home == pc) {
+    		String result = payByProcedure(pc, session.logged_user, reservationId);
+    		if (result != null) {
+    			return result;
+    		}
+    	}
+    	PreparedStatement pay = pc.statements.get("pay.find", query);
+    	pay.setString(1, session.logged_user);
+    	pay.setInt(2, localRid(reservationId));
+    	ResultSet rs = executeQuery(pc, pay);
+    	int balance = 0;
+    	int price1 = 0;
+    	int price2 = 0;
+    	if (rs.next()) {
+    		found = true;
+    		balance = rs.getInt(2);
+    		price1 = rs.getInt(6);
+    		price2 = rs.getInt(7) + rs.getInt(8);  // second leg and any later legs
+    	}
+    	rs.close();
+    	if (!found) {
+    		return "Cannot find unpaid reservation " + reservationId + " under user: " + session.logged_user + "\n";
+    	}
+    	if (home != pc) {
+    		balance = balanceOf(home, session.logged_user);
+    	}
+    	GroupCommit group = groupCommit;
+    	if (price1 + price2 > balance) {
+    		return "User has only " + balance + " in account but itinerary costs " + (price1 + price2) + "\n";
+    	} else if (group != null && home == pc) {
+    		// committed together with the writes of other sessions, see enableGroupCommit
+    		checkDanglingTransaction(pc);
+    		pc.owner.release(pc);
+    		pc = null;
+    		home = null;
+    		return group.submit(new GroupPayment(shard, session.logged_user, reservationId, price1 + price2));
+    	} else {
+    		PreparedStatement update = pc.statements.get("pay.mark_paid_once", query2);
+    		update.setInt(1, localRid(reservationId));
+    		begin(pc);
+    		if (executeUpdate(pc, update) != 1) {
+    			// paid or cancelled by another session since it was found
+    			rollback(pc);
+    			return "Cannot find unpaid reservation " + reservationId + " under user: " + session.logged_user + "\n";
+    		}
+    		PreparedStatement debit = home.statements.get("pay.debit", query3);
+    		debit.setInt(1, price1 + price2);
+    		debit.setString(2, session.logged_user);
+    		debit.setInt(3, price1 + price2);
+    		begin(home);
+    		ResultSet remain_balance = executeQuery(home, debit);
+    		boolean charged = remain_balance.next();
+    		int remaining = charged ? remain_balance.getInt(1) : 0;
+    		remain_balance.close();
+    		if (!charged) {
+    			// the balance was spent by another session since it was read
+    			rollbackHome(home, pc);
+    			rollback(pc);
+    			return "User has only " + balanceOf(home, session.logged_user) + " in account but itinerary costs " + (price1 + price2) + "\n";
+    		}
+    		commitWithBalance(home, pc, session.logged_user, price1 + price2);
+    		ReservationCache views = reservationCache;
+    		if (views != null) {
+    			views.paid(session.logged_user, reservationId);
+    		}
+    		return "Paid reservation: " + reservationId + " remaining balance: " + remaining + "\n";
+    	}
+    } catch (Exception e) {
+    	try {
+    		rollbackHome(home, pc);
+    		rollback(pc);
+    	} catch (Exception e2) {
+    		return "Rollback failed";
+    	}
+      return "Failed to pay for reservation " + reservationId + "\n";
+    } finally {
+      releaseHome(home, pc);
+      release(pc, metrics.pay, start);
+    }
+  }
+
+  /**
+   * The balance of user, read on a connection to the home database.
+   */
+  private int balanceOf(PooledConnection home, String user) throws SQLException {
+    String balance = "SELECT balance FROM Users WHERE username = ?";
+    PreparedStatement ps = home.statements.get("users.balance", balance);
+    ps.setString(1, user);
+    ResultSet rs = executeQuery(home, ps);
+    try {
+      return rs.next() ? rs.getInt(1) : 0;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Commits a transaction that changed the balance of user through home and a reservation
+   * through pc. When the reservation is on the home database, home is pc and this is a
+   * single commit. Otherwise home commits first; if pc then fails to commit, the balance
+   * change is taken back by adding undo to the balance, so a balance never reflects a
+   * payment or cancellation that did not happen. A crash between the two commits is not
+   * covered.
+   */
+  private void commitWithBalance(PooledConnection home, PooledConnection pc, String user, int undo) throws SQLException {
+    String adjust = "UPDATE Users SET balance = balance + ? WHERE username = ?";
+    if (home != pc) {
+      commit(home);
+    }
+    try {
+      commit(pc);
+    } catch (SQLException e) {
+      if (home != pc) {
+        metrics.crossShardUndos.increment();
+        PreparedStatement ps = home.statements.get("users.undo_balance", adjust);
+        ps.setInt(1, undo);
+        ps.setString(2, user);
+        executeUpdate(home, ps);
+      }
+      throw e;
+    }
+  }
+
+  // Rolls back the home database's part of a failed transaction that also used another shard
+  private void rollbackHome(PooledConnection home, PooledConnection pc) throws SQLException {
+    if (home != null && home != pc) {
+      rollback(home);
+    }
+  }
+
+  private void releaseHome(PooledConnection home, PooledConnection pc) {
+    if (home != null && home != pc) {
+      checkDanglingTransaction(home);
+      home.owner.release(home);
+    }
+  }
+
+  /**
+   * Implements the reservations function.
+   */
+  public String transaction_reservations() {
+    return transaction_reservations(defaultSession);
+  }
+
+  public String transaction_reservations(Session session) {
+    Permit permit = admit(ADMIT_ACCOUNT);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return reservations(session);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String reservations(Session session) {
+    long start = System.nanoTime();
+  	String get_flights = "SELECT F1.fid, F1.day_of_month, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city, F1.actual_time, F1.capacity, F1.price," +
+  			" F2.fid, F2.day_of_month, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, F2.actual_time, F2.capacity, F2.price," +
+  			" R.rid, R.paid, (SELECT COUNT(*) FROM ReservationLegs L WHERE L.rid = R.rid)" +
+  			" FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid" +
+  			" WHERE R.username = ? AND R.cancelled = 0 ORDER BY R.rid";
+  	String get_later_legs = "SELECT L.rid, F.fid, F.day_of_month, F.carrier_id, F.flight_num, F.origin_city, F.dest_city," +
+  			" F.actual_time, F.capacity, F.price FROM ReservationLegs L JOIN Reservations R ON L.rid = R.rid" +
+  			" JOIN Flights F ON L.fid = F.fid WHERE R.username = ? AND R.cancelled = 0 ORDER BY L.rid, L.leg";
+  	
+    if (!session.logged_in) {
+    	return "Cannot view reservations, not logged in\n";
+    }
+    String user = session.logged_user;
+    PooledConnection pc = null;
+  	try {
+  		ReservationCache cache = reservationCache;
+  		Object load = null;
+  		if (cache != null) {
+  			String cached = cache.get(user);
+  			if (cached != null) {
+  				return cached;
+  			}
+  			load = cache.startLoad(user);
+  		}
+  		// legs of each live reservation, one line each, by rid; every shard holds some of them
+  		TreeMap<Integer, ReservationView> views = new TreeMap<Integer, ReservationView>();
+  		for (Shard shard : shards) {
+  			pc = shard.pool.acquire();
+  			PreparedStatement res = pc.statements.get("reservations.list", get_flights);
+  			res.setString(1, user);
+  			ResultSet rs2 = executeQuery(pc, res);
+  			boolean later_legs = false;
+  			while (rs2.next()) {
+  				int rid = globalRid(shard, rs2.getInt(19));
+  				StringBuilder legs = new StringBuilder();
+  				legs.append(flightAt(rs2, 1)).append("\n");
+  				rs2.getInt(10);
+  				if (!rs2.wasNull()) {  // 2 flights
+  					legs.append(flightAt(rs2, 10)).append("\n");
+  				}
+  				views.put(rid, new ReservationView(rid, rs2.getInt(20) == 1, legs));
+  				later_legs |= rs2.getInt(21) > 0;
+  			}
+  			rs2.close();
+  			if (later_legs) {
+  				PreparedStatement legs = pc.statements.get("reservations.legs", get_later_legs);
+  				legs.setString(1, user);
+  				ResultSet rs3 = executeQuery(pc, legs);
+  				while (rs3.next()) {
+  					ReservationView view = views.get(globalRid(shard, rs3.getInt(1)));
+  					if (view != null) {
+  						view.legs.append(flightAt(rs3, 2)).append("\n");
+  					}
+  				}
+  				rs3.close();
+  			}
+  			checkDanglingTransaction(pc);
+  			pc.owner.release(pc);
+  			pc = null;
+  		}
+  		if (cache != null) {
+  			return cache.put(user, views, load);
+  		}
+  		return renderReservations(views);
+  	} catch (Exception e) {
+      return "Failed to retrieve reservations\n";
+    } finally {
+      release(pc, metrics.reservations, start);
+    }
+  }
+
+  /**
+   * Reads the Flights columns fid, day_of_month, carrier_id, flight_num, origin_city,
+   * dest_city, actual_time, capacity and price, starting at column first.
+   */
+  private Flight flightAt(ResultSet rs, int first) throws SQLException {
+    Flight f = new Flight();
+    f.fid = rs.getInt(first);
+    f.dayOfMonth = rs.getInt(first + 1);
+    f.carrierId = rs.getString(first + 2);
+    f.flightNum = rs.getString(first + 3);
+    f.originCity = rs.getString(first + 4);
+    f.destCity = rs.getString(first + 5);
+    f.time = rs.getInt(first + 6);
+    f.capacity = rs.getInt(first + 7);
+    f.price = rs.getInt(first + 8);
+    return f;
+  }
+
+  /**
+   * The output of transaction_reservations for the given reservations.
+   */
+  private String renderReservations(Map<Integer, ReservationView> views) {
+    if (views.isEmpty()) {
+      return "No reservations found\n";
+    }
+    StringBuilder sb = new StringBuilder();
+    for (ReservationView view : views.values()) {
+      sb.append("Reservation ").append(view.rid).append(" paid: ").append(view.paid).append(":\n").append(view.legs);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Implements the cancel operation.
+   */
+  public String transaction_cancel(int reservationId) {
+    return transaction_cancel(defaultSession, reservationId);
+  }
+
+  public String transaction_cancel(Session session, int reservationId) {
+    Permit permit = admit(ADMIT_CANCEL);
+    if (permit == null) {
+      return BUSY;
+    }
+    try {
+      return cancel(session, reservationId);
+    } finally {
+      permit.release();
+    }
+  }
+
+  private String cancel(Session session, int reservationId) {
+    long start = System.nanoTime();
+    if (!session.logged_in) {
+    	return "Cannot cancel reservations, not logged in\n";
+    }
+    
+    String query = "SELECT R.rid, U.username, R.paid, U.balance, F1.price, F2.price, R.fid1, R.fid2," +
+    		" (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLegs L JOIN Flights F ON L.fid = F.fid WHERE L.rid = R.rid)," +
+    		" (SELECT COUNT(*) FROM ReservationLegs L WHERE L.rid = R.rid) FROM Reservations R JOIN Users U ON R.username = U.username" +
+    		" JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid WHERE R.cancelled = 0 AND R.rid = ? AND U.username = ?";
+    String query2 = "UPDATE Users SET balance = balance + ? WHERE username = ?";
+    String query3 = "UPDATE Reservations SET cancelled = 1 WHERE username = ? AND rid = ? AND cancelled = 0 AND paid = ?";
+    String query4 = "SELECT fid FROM ReservationLegs WHERE rid = ? ORDER BY leg";
+    Shard shard = shardOfReservation(reservationId);
+    int rid = localRid(reservationId);
+    PooledConnection pc = null;
+    // the home database's connection for the refund; pc itself when the reservation is there
+    PooledConnection home = null;
+    
+  	try {
+    pc = shard.pool.acquire();
+    home = shard == shards[0] ? pc : pool.acquire();
+    if (storedProcedures && home == pc) {
+    	String result = cancelByProcedure(pc, session.logged_user, reservationId);
+    	if (result != null) {
+    		return result;
+    	}
+    }
+    PreparedStatement cancel = pc.statements.get("cancel.find", query);
+    cancel.setInt(1, rid);
+    cancel.setString(2, session.logged_user);
+    ResultSet rs = executeQuery(pc, cancel);
+    int paid = -1;
+    int price1 = 0;
+    int price2 = 0;
+    int fid1 = -1;
+    int fid2 = -1;
+    int later_legs = 0;
+    if (rs.next()) {
+    	paid = rs.getInt(3);
+    	price1 = rs.getInt(5);
+    	price2 = rs.getInt(6);
+    	fid1 = rs.getInt(7);
+    	fid2 = rs.getInt(8);
+    	if (rs.wasNull()) {
+    		fid2 = -1;
+    	}
+    	price2 += rs.getInt(9);  // later legs are refunded with the second
+    	later_legs = rs.getInt(10);
+    }
+    rs.close();
+    PreparedStatement cnc = pc.statements.get("cancel.mark_cancelled_once", query3);
+    if (paid != -1) {
+    	begin(pc);
+    	cnc.setString(1, session.logged_user);
+    	cnc.setInt(2, rid);
+    	cnc.setInt(3, paid);
+    	if (executeUpdate(pc, cnc) != 1) {
+    		// cancelled or paid by another session since it was found
+    		rollback(pc);
+    		return "Failed to cancel reservation " + reservationId + "\n";
+    	}
+    	if (paid == 1) {
+    		PreparedStatement refund = home.statements.get("cancel.refund", query2);
+    		refund.setInt(1, price1 + price2);
+    		refund.setString(2, session.logged_user);
+    		begin(home);
+    		executeUpdate(home, refund);
+    	}
+    	int left1 = releaseSeat(pc, fid1);
+    	int left2 = fid2 == -1 ? -1 : releaseSeat(pc, fid2);
+    	int[] later_fids = new int[later_legs];
+    	int[] later_left = new int[later_legs];
+    	if (later_legs > 0) {
+    		PreparedStatement legs = pc.statements.get("cancel.legs", query4);
+    		legs.setInt(1, rid);
+    		ResultSet rs_legs = executeQuery(pc, legs);
+    		for (int i = 0; i < later_legs && rs_legs.next(); i++) {
+    			later_fids[i] = rs_legs.getInt(1);
+    		}
+    		rs_legs.close();
+    		for (int i = 0; i < later_legs; i++) {
+    			later_left[i] = releaseSeat(pc, later_fids[i]);
+    		}
+    	}
+    	if (paid == 1) {
+    		commitWithBalance(home, pc, session.logged_user, -(price1 + price2));
+    	} else {
+    		commit(pc);
+    	}
+    	seatsReleased(fid1, left1);
+    	if (fid2 != -1) {
+    		seatsReleased(fid2, left2);
+    	}
+    	for (int i = 0; i < later_legs; i++) {
+    		seatsReleased(later_fids[i], later_left[i]);
+    	}
+    	ReservationCache views = reservationCache;
+    	if (views != null) {
+    		views.cancelled(session.logged_user, reservationId);
+    	}
+    	return "Canceled reservation " + reservationId + "\n";
+    } else {
+    	return "Failed to cancel reservation " + reservationId + "\n"; 
+    }
+    } catch (Exception e) {
+    	try {
+    		rollbackHome(home, pc);
+    		rollback(pc);
+    	} catch (Exception e2) {
+    		return "Failed to rollback transaction";
+    	}
+      return "Failed to cancel reservation " + reservationId + "\n";
+    } finally {
+      releaseHome(home, pc);
+      release(pc, metrics.cancel, start);
+    }
+  }
+
+  /**
+   * A class to store flight information.
+   */
+  class Flight {
+    public int fid;
+    public int dayOfMonth;
+    public String carrierId;
+    public String flightNum;
+    public String originCity;
+    public String destCity;
+    public int time;
+    public int capacity;
+    public int price;
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      appendTo(sb, originCity, destCity);
+      return sb.toString();
+    }
+
+    /**
+     * Appends the flight as toString does, with the given names for its two cities.
+     */
+    void appendTo(StringBuilder sb, String origin, String dest) {
+      sb.append("ID: ").append(fid).append(" Day: ").append(dayOfMonth).append(" Carrier: ").append(carrierId)
+          .append(" Number: ").append(flightNum).append(" Origin: ").append(origin).append(" Dest: ").append(dest)
+          .append(" Duration: ").append(time).append(" Capacity: ").append(capacity).append(" Price: ").append(price);
+    }
+  }
+
+  /**
+   * Login state and last search results of one user. A session holds no connection; its
+   * transactions borrow one from the pool for their duration.
+   */
+  public class Session {
+    volatile boolean logged_in = false;
+    volatile String logged_user = "";
+    volatile List<Itinerary> SortedList = new ArrayList<Itinerary>();
+  }
+
+  /**
+   * A pooled connection together with the statements prepared on it.
+   */
+  class PooledConnection {
+    Connection conn;
+    StatementCache statements;
+    ConnectionPool owner;
+    // a transaction is open, between begin and commit or rollback
+    boolean inTransaction;
+
+    PooledConnection(Connection conn, ConnectionPool owner) {
+      this.conn = conn;
+      this.statements = new StatementCache(conn);
+      this.owner = owner;
+    }
+
+    void close() {
+      statements.close();
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        // already broken, nothing left to release
+      }
+    }
+  }
+
+  /**
+   * One database holding the flights and reservations of the days that map to it, with its
+   * admin connection and its own pool. Shard 0 is the home database.
+   */
+  class Shard {
+    final int index;
+    final Connection admin;
+    final ConnectionPool pool;
+
+    Shard(int index, Connection admin, ConnectionPool pool) {
+      this.index = index;
+      this.admin = admin;
+      this.pool = pool;
+    }
+
+    void close() throws SQLException {
+      pool.close();
+      admin.close();
+    }
+  }
+
+  /**
+   * At most size connections, opened on demand. A caller that finds every connection busy
+   * waits up to POOL_TIMEOUT_MS for one to be released. Once the pool is closed, connections
+   * still checked out are closed as they are released.
+   */
+  class ConnectionPool {
+    private static final long POOL_TIMEOUT_MS = 5000;
+
+    private String url;
+    private Properties info;
+    private Semaphore permits;
+    private ConcurrentLinkedQueue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+    private volatile boolean closed = false;
+
+    ConnectionPool(String url, Properties info, int size) {
+      this.url = url;
+      this.info = info;
+      this.permits = new Semaphore(size, true);
+    }
+
+    PooledConnection acquire() throws SQLException {
+      try {
+        if (!permits.tryAcquire(POOL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          throw new SQLTransientConnectionException("No connection available after " + POOL_TIMEOUT_MS + " ms");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLTransientConnectionException("Interrupted waiting for a connection", e);
+      }
+      if (closed) {
+        permits.release();
+        throw new SQLNonTransientConnectionException("Connection pool is closed");
+      }
+      PooledConnection pc = idle.poll();
+      if (pc != null) {
+        return pc;
+      }
+      try {
+        return new PooledConnection(DriverManager.getConnection(url, info), this);
+      } catch (SQLException e) {
+        permits.release();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if it can no longer be used.
+     */
+    void release(PooledConnection pc) {
+      boolean usable;
+      try {
+        usable = !pc.inTransaction && !pc.conn.isClosed() && pc.conn.getAutoCommit();
+      } catch (SQLException e) {
+        usable = false;
+      }
+      if (usable && !closed) {
+        idle.offer(pc);
+        // close may have drained the idle connections between the check and the offer
+        if (closed) {
+          closeIdle();
+        }
+      } else {
+        pc.close();
+      }
+      permits.release();
+    }
+
+    /**
+     * Closes the idle connections now and every other one when it is released.
+     */
+    void close() {
+      closed = true;
+      closeIdle();
+    }
+
+    private void closeIdle() {
+      PooledConnection pc;
+      while ((pc = idle.poll()) != null) {
+        pc.close();
+      }
+    }
+  }
+
+  /**
+   * Latency distribution in microseconds, kept in log-linear buckets: eight buckets per power
+   * of two, so a reported percentile is within 12.5% of the true value. Recording is a few
+   * atomic adds and never allocates, so it can stay on under full load.
+   */
+  public static class LatencyHistogram implements LatencyMBean {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      buckets.incrementAndGet(bucket(micros));
+      count.increment();
+      totalMicros.add(micros);
+      if (micros > maxMicros.get()) {
+        maxMicros.accumulateAndGet(micros, Math::max);
+      }
+    }
+
+    private static int bucket(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value that falls into the bucket
+    private static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long getPercentileMicros(double percentile) {
+      long total = count.sum();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(upperBound(i), maxMicros.get());
+        }
+      }
+      return maxMicros.get();
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getMeanMicros() {
+      long n = count.sum();
+      return n == 0 ? 0 : totalMicros.sum() / n;
+    }
+
+    public long getP50Micros() {
+      return getPercentileMicros(50);
+    }
+
+    public long getP90Micros() {
+      return getPercentileMicros(90);
+    }
+
+    public long getP99Micros() {
+      return getPercentileMicros(99);
+    }
+
+    public long getP999Micros() {
+      return getPercentileMicros(99.9);
+    }
+
+    public long getMaxMicros() {
+      return maxMicros.get();
+    }
+  }
+
+  /**
+   * JMX view of one LatencyHistogram.
+   */
+  public interface LatencyMBean {
+    long getCount();
+    long getMeanMicros();
+    long getP50Micros();
+    long getP90Micros();
+    long getP99Micros();
+    long getP999Micros();
+    long getMaxMicros();
+  }
+
+  /**
+   * JMX view of the Query counters.
+   */
+  public interface QueryCountersMBean {
+    long getRoundTrips();
+    long getRollbacks();
+    long getDanglingTransactions();
+    long getStatementCacheHits();
+    long getStatementCacheMisses();
+    int getHashQueueDepth();
+    long getHashMeanMicros();
+    long getHashMaxMicros();
+    double getSearchCacheHitRatio();
+    long getSearchCacheEvictions();
+    long getSearchCacheInvalidations();
+    int getAsyncInFlight();
+    long getAsyncRejected();
+    long getConflicts();
+    long getRetries();
+    long getRetriesExhausted();
+    double getReservationCacheHitRatio();
+    long getReservationCacheEvictions();
+    long getGroupCommitBatches();
+    double getGroupCommitMeanBatchSize();
+    int getGroupCommitMaxBatchSize();
+    long getGroupCommitSplits();
+    long getGroupCommitFailures();
+    String getGroupCommitLastFailure();
+    long getBookingFailures();
+    String getBookingLastFailure();
+    long getCrossShardUndos();
+    long getAdmissionRejected();
+  }
+
+  /**
+   * A latency histogram per transaction_* method and per named SQL statement, and counters
+   * of server round trips, rollbacks and dangling transactions. Registered with the platform
+   * MBean server under flightapp:type=Query,instance=N.
+   */
+  class Metrics implements QueryCountersMBean {
+    final LatencyHistogram login = new LatencyHistogram();
+    final LatencyHistogram createCustomer = new LatencyHistogram();
+    final LatencyHistogram search = new LatencyHistogram();
+    final LatencyHistogram searchRoutes = new LatencyHistogram();
+    final LatencyHistogram book = new LatencyHistogram();
+    final LatencyHistogram bookGroup = new LatencyHistogram();
+    final LatencyHistogram pay = new LatencyHistogram();
+    final LatencyHistogram reservations = new LatencyHistogram();
+    final LatencyHistogram cancel = new LatencyHistogram();
+    final LatencyHistogram commit = new LatencyHistogram();
+    final LatencyHistogram groupCommitWait = new LatencyHistogram();
+
+    final LongAdder roundTrips = new LongAdder();
+    final LongAdder rollbacks = new LongAdder();
+    final LongAdder danglingTransactions = new LongAdder();
+    final LongAdder statementCacheHits = new LongAdder();
+    final LongAdder statementCacheMisses = new LongAdder();
+    final LongAdder asyncRejected = new LongAdder();
+    final LongAdder conflicts = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder retriesExhausted = new LongAdder();
+    final LongAdder crossShardUndos = new LongAdder();
+    final LongAdder bookingFailures = new LongAdder();
+    // The error of the most recent failed booking, for diagnosis
+    volatile SQLException lastBookingFailure;
+
+    private ConcurrentHashMap<String, LatencyHistogram> statements = new ConcurrentHashMap<String, LatencyHistogram>();
+    private String domain = "flightapp:type=Query,instance=" + INSTANCES.incrementAndGet();
+    private ArrayList<ObjectName> registered = new ArrayList<ObjectName>();
+    private volatile boolean exported = false;
+
+    /**
+     * Counts a booking that failed on e, which is kept as the most recent failure.
+     */
+    void bookingFailed(SQLException e) {
+      bookingFailures.increment();
+      lastBookingFailure = e;
+    }
+
+    /**
+     * Histogram of the named SQL statement. Created, and exported if JMX is on, the first
+     * time a connection prepares the statement.
+     */
+    LatencyHistogram statement(String name) {
+      LatencyHistogram h = statements.get(name);
+      if (h == null) {
+        LatencyHistogram created = new LatencyHistogram();
+        h = statements.putIfAbsent(name, created);
+        if (h == null) {
+          h = created;
+          if (exported) {
+            export("group=Statements,name=" + name, h, LatencyMBean.class);
+          }
+        }
+      }
+      return h;
+    }
+
+    void register() {
+      exported = true;
+      export("name=Counters", this, QueryCountersMBean.class);
+      export("group=Transactions,name=transaction_login", login, LatencyMBean.class);
+      export("group=Transactions,name=transaction_createCustomer", createCustomer, LatencyMBean.class);
+      export("group=Transactions,name=transaction_search", search, LatencyMBean.class);
+      export("group=Transactions,name=transaction_searchRoutes", searchRoutes, LatencyMBean.class);
+      export("group=Transactions,name=transaction_book", book, LatencyMBean.class);
+      export("group=Transactions,name=transaction_bookGroup", bookGroup, LatencyMBean.class);
+      export("group=Transactions,name=transaction_pay", pay, LatencyMBean.class);
+      export("group=Transactions,name=transaction_reservations", reservations, LatencyMBean.class);
+      export("group=Transactions,name=transaction_cancel", cancel, LatencyMBean.class);
+      export("group=Statements,name=commit", commit, LatencyMBean.class);
+      export("group=GroupCommit,name=wait", groupCommitWait, LatencyMBean.class);
+      for (Map.Entry<String, LatencyHistogram> e : statements.entrySet()) {
+        export("group=Statements,name=" + e.getKey(), e.getValue(), LatencyMBean.class);
+      }
+    }
+
+    private synchronized <T> void export(String name, T bean, Class<T> view) {
+      try {
+        ObjectName objectName = new ObjectName(domain + "," + name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean, view), objectName);
+        registered.add(objectName);
+      } catch (JMException e) {
+        System.out.println("Failed to register " + name + ": " + e.getMessage());
+      }
+    }
+
+    synchronized void unregister() {
+      exported = false;
+      for (ObjectName name : registered) {
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+          // already gone
+        }
+      }
+      registered.clear();
+    }
+
+    public long getRoundTrips() {
+      return roundTrips.sum();
+    }
+
+    public long getRollbacks() {
+      return rollbacks.sum();
+    }
+
+    public long getDanglingTransactions() {
+      return danglingTransactions.sum();
+    }
+
+    public long getStatementCacheHits() {
+      return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+      return statementCacheMisses.sum();
+    }
+
+    public int getHashQueueDepth() {
+      return Query.this.getHashQueueDepth();
+    }
+
+    public long getHashMeanMicros() {
+      return Query.this.getHashMeanMicros();
+    }
+
+    public long getHashMaxMicros() {
+      return Query.this.getHashMaxMicros();
+    }
+
+    public double getSearchCacheHitRatio() {
+      return Query.this.getSearchCacheHitRatio();
+    }
+
+    public long getSearchCacheEvictions() {
+      return Query.this.getSearchCacheEvictions();
+    }
+
+    public long getSearchCacheInvalidations() {
+      return Query.this.getSearchCacheInvalidations();
+    }
+
+    public int getAsyncInFlight() {
+      return Query.this.getAsyncInFlight();
+    }
+
+    public long getAsyncRejected() {
+      return asyncRejected.sum();
+    }
+
+    public long getConflicts() {
+      return conflicts.sum();
+    }
+
+    public long getRetries() {
+      return retries.sum();
+    }
+
+    public long getRetriesExhausted() {
+      return retriesExhausted.sum();
+    }
+
+    public double getReservationCacheHitRatio() {
+      return Query.this.getReservationCacheHitRatio();
+    }
+
+    public long getReservationCacheEvictions() {
+      return Query.this.getReservationCacheEvictions();
+    }
+
+    public long getGroupCommitBatches() {
+      return Query.this.getGroupCommitBatches();
+    }
+
+    public double getGroupCommitMeanBatchSize() {
+      return Query.this.getGroupCommitMeanBatchSize();
+    }
+
+    public int getGroupCommitMaxBatchSize() {
+      return Query.this.getGroupCommitMaxBatchSize();
+    }
+
+    public long getGroupCommitSplits() {
+      return Query.this.getGroupCommitSplits();
+    }
+
+    public long getGroupCommitFailures() {
+      return Query.this.getGroupCommitFailures();
+    }
+
+    public String getGroupCommitLastFailure() {
+      return Query.this.getGroupCommitLastFailure();
+    }
+
+    public long getBookingFailures() {
+      return bookingFailures.sum();
+    }
+
+    public String getBookingLastFailure() {
+      return Query.this.getBookingLastFailure();
+    }
+
+    public long getCrossShardUndos() {
+      return crossShardUndos.sum();
+    }
+
+    public long getAdmissionRejected() {
+      return Query.this.getAdmissionRejected();
+    }
+  }
+
+  /**
+   * One live reservation as transaction_reservations lists it: its legs, one line each.
+   */
+  class ReservationView {
+    final int rid;
+    final boolean paid;
+    final StringBuilder legs;
+
+    ReservationView(int rid, boolean paid, StringBuilder legs) {
+      this.rid = rid;
+      this.paid = paid;
+      this.legs = legs;
+    }
+
+    // Rough heap size, for the reservation cache's memory bound
+    long bytes() {
+      return 64 + 2L * legs.length();
+    }
+  }
+
+  /**
+   * The live reservations of one user, with their rendered listing once asked for.
+   */
+  class UserReservations {
+    final TreeMap<Integer, ReservationView> views;
+    String rendered = null;
+    long bytes;
+
+    UserReservations(String user, TreeMap<Integer, ReservationView> views) {
+      this.views = views;
+      this.bytes = 96 + 2L * user.length();
+      for (ReservationView view : views.values()) {
+        bytes += view.bytes();
+      }
+    }
+
+    String render() {
+      if (rendered == null) {
+        rendered = renderReservations(views);
+      }
+      return rendered;
+    }
+
+    void put(ReservationView view) {
+      ReservationView old = views.put(view.rid, view);
+      bytes += view.bytes() - (old == null ? 0 : old.bytes());
+      rendered = null;
+    }
+
+    void remove(int rid) {
+      ReservationView old = views.remove(rid);
+      if (old != null) {
+        bytes -= old.bytes();
+        rendered = null;
+      }
+    }
+  }
+
+  /**
+   * Reservation listings per user, about maxBytes of them at most, least recently used user
+   * evicted first. Writes update a cached listing in place. A listing loaded from the
+   * database is only stored if no write for its user committed while it was loading, so a
+   * load never brings back a listing a write has already changed.
+   */
+  class ReservationCache {
+    private long maxBytes;
+    private long bytes = 0;
+    private LinkedHashMap<String, UserReservations> entries = new LinkedHashMap<String, UserReservations>(16, 0.75f, true);
+    private HashMap<String, Object> loading = new HashMap<String, Object>();
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    ReservationCache(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized String get(String user) {
+      UserReservations u = entries.get(user);
+      if (u == null) {
+        misses.increment();
+        return null;
+      }
+      hits.increment();
+      return u.render();
+    }
+
+    /**
+     * Marks a load of user's listing as started; pass the result to put.
+     */
+    synchronized Object startLoad(String user) {
+      Object load = new Object();
+      loading.put(user, load);
+      return load;
+    }
+
+    /**
+     * Stores the listing loaded by load, unless a write for user came in since, and returns
+     * it rendered.
+     */
+    synchronized String put(String user, TreeMap<Integer, ReservationView> views, Object load) {
+      UserReservations u = new UserReservations(user, views);
+      if (loading.get(user) == load) {
+        loading.remove(user);
+        UserReservations old = entries.put(user, u);
+        bytes += u.bytes - (old == null ? 0 : old.bytes);
+        evict();
+      }
+      return u.render();
+    }
+
+    synchronized void booked(String user, int rid, Itinerary itinerary) {
+      StringBuilder legs = new StringBuilder();
+      for (Flight f : itinerary.legs) {
+        legs.append(f).append("\n");
+      }
+      update(user, new ReservationView(rid, false, legs), rid);
+    }
+
+    synchronized void paid(String user, int rid) {
+      UserReservations u = entries.get(user);
+      ReservationView view = u == null ? null : u.views.get(rid);
+      if (u != null && view == null) {
+        // the listing missed a reservation, load it again
+        entries.remove(user);
+        bytes -= u.bytes;
+      }
+      update(user, view == null ? null : new ReservationView(rid, true, view.legs), rid);
+    }
+
+    synchronized void cancelled(String user, int rid) {
+      update(user, null, rid);
+    }
+
+    synchronized void clear() {
+      entries.clear();
+      loading.clear();
+      bytes = 0;
+    }
+
+    /**
+     * Replaces reservation rid of user's cached listing with view, or removes it if view is
+     * null, and fails any load of the listing in progress.
+     */
+    private void update(String user, ReservationView view, int rid) {
+      loading.remove(user);
+      UserReservations u = entries.get(user);
+      if (u == null) {
+        return;
+      }
+      bytes -= u.bytes;
+      if (view == null) {
+        u.remove(rid);
+      } else {
+        u.put(view);
+      }
+      bytes += u.bytes;
+      evict();
+    }
+
+    private void evict() {
+      Iterator<UserReservations> lru = entries.values().iterator();
+      while (bytes > maxBytes && lru.hasNext()) {
+        bytes -= lru.next().bytes;
+        lru.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * Result rows of one search: the direct flights and the one-stop itineraries, each in the
+   * order of its query, and each fetched with at most limit rows. Rows are kept as columns of
+   * their legs, fids and durations as ints, and the one-stop rows are merged with the direct
+   * ones by duration as they arrive; Itinerary and Flight objects are only built by take, for
+   * the itineraries a search returns. All direct rows are added before the one-stop rows.
+   */
+  class SearchResults {
+    final int limit;
+    final boolean directOnly;
+    final int dayOfMonth;
+
+    // Legs of the rows, in the order added. A leg from the flight index keeps its Flight in
+    // source; a leg read from the database has a null source and only its columns
+    private int legs = 0;
+    private int[] fid = new int[8];
+    private int[] flightNum = new int[8];
+    private int[] time = new int[8];
+    private int[] capacity = new int[8];
+    private int[] price = new int[8];
+    private String[] carrierId = new String[8];
+    private String[] originCity = new String[8];
+    private String[] destCity = new String[8];
+    private Flight[] source = new Flight[8];
+    // One String per carrier or city name across the rows
+    private HashMap<String, String> names = new HashMap<String, String>();
+
+    // Rows: first leg, number of legs and total duration; direct rows come first
+    private int rows = 0;
+    private int[] rowLeg = new int[8];
+    private int[] rowLegs = new int[8];
+    private int[] rowTime = new int[8];
+    private int directRows = 0;
+    // Rows in duration order, a direct row before a one-stop row of the same duration; the
+    // direct rows from pendingDirect on are longer than every one-stop row and follow them
+    private int[] merged = new int[8];
+    private int pendingDirect = 0;
+
+    SearchResults(int limit, boolean directOnly, int dayOfMonth) {
+      this.limit = limit;
+      this.directOnly = directOnly;
+      this.dayOfMonth = dayOfMonth;
+    }
+
+    /**
+     * Adds a leg read from the database and returns its number.
+     */
+    int addLeg(int fid, String carrierId, int flightNum, String originCity, String destCity, int time,
+        int capacity, int price) {
+      if (legs == this.fid.length) {
+        int size = legs * 2;
+        this.fid = Arrays.copyOf(this.fid, size);
+        this.flightNum = Arrays.copyOf(this.flightNum, size);
+        this.time = Arrays.copyOf(this.time, size);
+        this.capacity = Arrays.copyOf(this.capacity, size);
+        this.price = Arrays.copyOf(this.price, size);
+        this.carrierId = Arrays.copyOf(this.carrierId, size);
+        this.originCity = Arrays.copyOf(this.originCity, size);
+        this.destCity = Arrays.copyOf(this.destCity, size);
+        this.source = Arrays.copyOf(this.source, size);
+      }
+      this.fid[legs] = fid;
+      this.flightNum[legs] = flightNum;
+      this.time[legs] = time;
+      this.capacity[legs] = capacity;
+      this.price[legs] = price;
+      this.carrierId[legs] = name(carrierId);
+      this.originCity[legs] = name(originCity);
+      this.destCity[legs] = name(destCity);
+      this.source[legs] = null;
+      return legs++;
+    }
+
+    /**
+     * Adds a leg of the flight index and returns its number.
+     */
+    int addLeg(Flight f) {
+      int leg = addLeg(f.fid, null, 0, null, null, f.time, f.capacity, f.price);
+      source[leg] = f;
+      return leg;
+    }
+
+    private String name(String name) {
+      if (name == null) {
+        return null;
+      }
+      String shared = names.putIfAbsent(name, name);
+      return shared == null ? name : shared;
+    }
+
+    void addDirect(int leg) {
+      addRow(leg, 1, time[leg]);
+      directRows++;
+    }
+
+    void addOneStop(int leg1, int leg2) {
+      int row = addRow(leg1, 2, time[leg1] + time[leg2]);
+      while (pendingDirect < directRows && rowTime[pendingDirect] <= rowTime[row]) {
+        merged[pendingDirect + oneStopRows() - 1] = pendingDirect;
+        pendingDirect++;
+      }
+      merged[pendingDirect + oneStopRows() - 1] = row;
+    }
+
+    private int addRow(int leg, int legCount, int total) {
+      if (rows == rowLeg.length) {
+        int size = rows * 2;
+        rowLeg = Arrays.copyOf(rowLeg, size);
+        rowLegs = Arrays.copyOf(rowLegs, size);
+        rowTime = Arrays.copyOf(rowTime, size);
+        merged = Arrays.copyOf(merged, size);
+      }
+      rowLeg[rows] = leg;
+      rowLegs[rows] = legCount;
+      rowTime[rows] = total;
+      return rows++;
+    }
+
+    int directRows() {
+      return directRows;
+    }
+
+    private int oneStopRows() {
+      return rows - directRows;
+    }
+
+    /**
+     * True if these rows answer a search for numberOfItineraries itineraries: it asks for no
+     * more than was fetched, or both queries returned fewer rows than their limit.
+     */
+    boolean covers(int numberOfItineraries) {
+      return numberOfItineraries <= limit
+          || (directRows < limit && (directOnly || oneStopRows() < limit));
+    }
+
+    /**
+     * The itineraries transaction_search returns for numberOfItineraries: as many direct
+     * flights as fit, then one-stop itineraries for the remaining slots, in duration order
+     * with the direct flight first on a tie.
+     */
+    ArrayList<Itinerary> take(int numberOfItineraries) {
+      int directCount = Math.min(directRows, Math.max(0, numberOfItineraries));
+      int oneStopCount = Math.min(oneStopRows(), Math.max(0, numberOfItineraries) - directCount);
+      ArrayList<Itinerary> list = new ArrayList<Itinerary>(directCount + oneStopCount);
+      // merged holds pendingDirect direct rows and every one-stop row; the other direct rows follow
+      int mergedRows = pendingDirect + oneStopRows();
+      for (int i = 0; i < rows && list.size() < directCount + oneStopCount; i++) {
+        int row = i < mergedRows ? merged[i] : pendingDirect + (i - mergedRows);
+        // rows of each kind are in query order, so a row is taken if it is among the first of its kind
+        if (row < directRows ? row < directCount : row - directRows < oneStopCount) {
+          list.add(itinerary(row));
+        }
+      }
+      return list;
+    }
+
+    private Itinerary itinerary(int row) {
+      Flight[] flights = new Flight[rowLegs[row]];
+      for (int i = 0; i < flights.length; i++) {
+        flights[i] = flight(rowLeg[row] + i);
+      }
+      return new Itinerary(rowTime[row], flights);
+    }
+
+    private Flight flight(int leg) {
+      if (source[leg] != null) {
+        return source[leg];
+      }
+      Flight f = new Flight();
+      f.fid = fid[leg];
+      f.dayOfMonth = dayOfMonth;
+      f.carrierId = carrierId[leg];
+      f.flightNum = Integer.toString(flightNum[leg]);
+      f.originCity = originCity[leg];
+      f.destCity = destCity[leg];
+      f.time = time[leg];
+      f.capacity = capacity[leg];
+      f.price = price[leg];
+      return f;
+    }
+
+    void addFids(Set<Integer> fids) {
+      for (int leg = 0; leg < legs; leg++) {
+        fids.add(fid[leg]);
+      }
+    }
+  }
+
+  /**
+   * Search results shared by all sessions, at most maxEntries of them, least recently used
+   * evicted first. Each flight maps to the entries that show it, so an entry can be dropped
+   * when one of its flights changes. A fetch that started before an invalidation is not
+   * stored, so a stale result never replaces a dropped one.
+   */
+  class SearchCache {
+    static final int MIN_FETCH = 20;
+
+    private int maxEntries;
+    private LinkedHashMap<String, SearchResults> entries = new LinkedHashMap<String, SearchResults>(16, 0.75f, true);
+    private HashMap<Integer, HashSet<String>> byFlight = new HashMap<Integer, HashSet<String>>();
+    private long generation = 0;
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    SearchCache(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    String key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth) {
+      return originCity + "\n" + destinationCity + "\n" + dayOfMonth + (directFlight ? "\nD" : "\nI");
+    }
+
+    synchronized long generation() {
+      return generation;
+    }
+
+    synchronized SearchResults get(String key, int numberOfItineraries) {
+      SearchResults results = entries.get(key);
+      if (results != null && results.covers(numberOfItineraries)) {
+        hits.increment();
+        return results;
+      }
+      misses.increment();
+      return null;
+    }
+
+    synchronized void put(String key, SearchResults results, long fetchedAtGeneration) {
+      if (fetchedAtGeneration != generation) {
+        return;
+      }
+      remove(key);
+      entries.put(key, results);
+      HashSet<Integer> fids = new HashSet<Integer>();
+      results.addFids(fids);
+      for (Integer fid : fids) {
+        HashSet<String> keys = byFlight.get(fid);
+        if (keys == null) {
+          keys = new HashSet<String>();
+          byFlight.put(fid, keys);
+        }
+        keys.add(key);
+      }
+      while (entries.size() > maxEntries) {
+        remove(entries.keySet().iterator().next());
+        evictions.increment();
+      }
+    }
+
+    synchronized void invalidateFlight(int fid) {
+      generation++;
+      HashSet<String> keys = byFlight.remove(fid);
+      if (keys == null) {
+        return;
+      }
+      for (String key : new ArrayList<String>(keys)) {
+        remove(key);
+        invalidations.increment();
+      }
+    }
+
+    synchronized void clear() {
+      generation++;
+      entries.clear();
+      byFlight.clear();
+    }
+
+    private void remove(String key) {
+      SearchResults results = entries.remove(key);
+      if (results == null) {
+        return;
+      }
+      HashSet<Integer> fids = new HashSet<Integer>();
+      results.addFids(fids);
+      for (Integer fid : fids) {
+        HashSet<String> keys = byFlight.get(fid);
+        if (keys != null) {
+          keys.remove(key);
+          if (keys.isEmpty()) {
+            byFlight.remove(fid);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A booking or payment waiting for a group commit batch. run executes its statements
+   * within the batch's transaction and returns its result; a write that cannot go ahead,
+   * e.g. on a full flight, undoes its own statements and returns its failure message, so the
+   * rest of the batch still commits. committed runs after the batch commits. Batches only
+   * hold writes to one shard.
+   */
+  abstract class GroupWrite {
+    final Shard shard;
+    final long enqueued = System.nanoTime();
+    final CompletableFuture<String> result = new CompletableFuture<String>();
+    String outcome;
+
+    GroupWrite(Shard shard) {
+      this.shard = shard;
+    }
+
+    abstract String run(PooledConnection pc) throws SQLException;
+
+    void committed() {
+    }
+
+    // Result when the write failed on its own
+    abstract String failed();
+  }
+
+  /**
+   * The same-day check and the writes of transaction_book. The check runs in the batch
+   * transaction, so it sees the bookings of earlier writes in the batch and a second booking
+   * of the user for the same day fails on its own.
+   */
+  class GroupBooking extends GroupWrite {
+    final String username;
+    final Itinerary itinerary;
+    final int[] legs;
+    int[] left;
+    int full;
+    int rid;
+    boolean sameDay;
+
+    GroupBooking(Shard shard, String username, Itinerary itinerary) {
+      super(shard);
+      this.username = username;
+      this.itinerary = itinerary;
+      this.legs = itinerary.getFids();
+    }
+
+    String run(PooledConnection pc) throws SQLException {
+      String book = "INSERT INTO Reservations(username, paid, cancelled, fid1, fid2) OUTPUT INSERTED.rid VALUES(?, 0, 0, ?, ?)";
+      String check_day = "SELECT F1.fid FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT OUTER JOIN Flights F2 on R.fid1 = F2.fid" +
+          " WHERE R.username = ? AND F1.day_of_month = ?";
+      left = new int[legs.length];
+      full = -1;
+      PreparedStatement check = pc.statements.get("book.check_day", check_day);
+      check.setString(1, username);
+      check.setInt(2, itinerary.getDay());
+      ResultSet rs_check = executeQuery(pc, check);
+      sameDay = rs_check.next();
+      rs_check.close();
+      if (sameDay) {
+        return "You cannot book two flights in the same day\n";
+      }
+      for (int i = 0; i < legs.length; i++) {
+        left[i] = claimSeat(pc, legs[i]);
+        if (left[i] < 0) {
+          // give back the seats taken on the earlier legs
+          full = legs[i];
+          for (int j = 0; j < i; j++) {
+            releaseSeat(pc, legs[j]);
+          }
+          return "Booking failed\n";
+        }
+      }
+      PreparedStatement reserve = pc.statements.get("book.reserve", book);
+      reserve.setString(1, username);
+      reserve.setInt(2, itinerary.getFid1());
+      if (itinerary.getFid2() == -1) {
+        reserve.setNull(3, java.sql.Types.INTEGER);
+      } else {
+        reserve.setInt(3, itinerary.getFid2());
+      }
+      ResultSet rs = executeQuery(pc, reserve);
+      rid = -1;
+      if (rs.next()) {
+        rid = rs.getInt(1);
+      }
+      rs.close();
+      insertLaterLegs(pc, rid, legs);
+      rid = globalRid(shard, rid);
+      return "Booked flight(s), reservation ID: " + rid + "\n";
+    }
+
+    void committed() {
+      if (sameDay) {
+        return;
+      }
+      if (full != -1) {
+        seats.observe(full, 0);
+        return;
+      }
+      for (int i = 0; i < legs.length; i++) {
+        seatsTaken(legs[i], left[i]);
+      }
+      ReservationCache views = reservationCache;
+      if (views != null) {
+        views.booked(username, rid, itinerary);
+      }
+    }
+
+    String failed() {
+      return "Booking failed\n";
+    }
+  }
+
+  /**
+   * The writes of transaction_pay once the reservation and its price have been found. The
+   * balance is debited with a conditional update, since other payments of the user may
+   * commit in the same batch. Only reservations on the home database, next to the balance,
+   * are paid this way.
+   */
+  class GroupPayment extends GroupWrite {
+    final String username;
+    final int rid;
+    final int price;
+    boolean paid;
+
+    GroupPayment(Shard shard, String username, int rid, int price) {
+      super(shard);
+      this.username = username;
+      this.rid = rid;
+      this.price = price;
+    }
+
+    String run(PooledConnection pc) throws SQLException {
+      String debit = "UPDATE Users SET balance = balance - ? OUTPUT INSERTED.balance WHERE username = ? AND balance >= ?";
+      String balance = "SELECT balance FROM Users WHERE username = ?";
+      String mark_paid = "UPDATE Reservations SET paid = 1 WHERE rid = ? AND paid = 0 AND cancelled = 0";
+      String refund = "UPDATE Users SET balance = balance + ? WHERE username = ?";
+      paid = false;
+
+      PreparedStatement charge = pc.statements.get("pay.debit", debit);
+      charge.setInt(1, price);
+      charge.setString(2, username);
+      charge.setInt(3, price);
+      ResultSet rs = executeQuery(pc, charge);
+      int remaining = -1;
+      boolean charged = rs.next();
+      if (charged) {
+        remaining = rs.getInt(1);
+      }
+      rs.close();
+      if (!charged) {
+        PreparedStatement current = pc.statements.get("pay.current_balance", balance);
+        current.setString(1, username);
+        rs = executeQuery(pc, current);
+        int has = rs.next() ? rs.getInt(1) : 0;
+        rs.close();
+        return "User has only " + has + " in account but itinerary costs " + price + "\n";
+      }
+
+      PreparedStatement update = pc.statements.get("pay.mark_paid_once", mark_paid);
+      update.setInt(1, localRid(rid));
+      if (executeUpdate(pc, update) == 0) {
+        // paid or cancelled by another session since it was found
+        PreparedStatement undo = pc.statements.get("pay.refund", refund);
+        undo.setInt(1, price);
+        undo.setString(2, username);
+        executeUpdate(pc, undo);
+        return "Cannot find unpaid reservation " + rid + " under user: " + username + "\n";
+      }
+      paid = true;
+      return "Paid reservation: " + rid + " remaining balance: " + remaining + "\n";
+    }
+
+    void committed() {
+      ReservationCache views = reservationCache;
+      if (paid && views != null) {
+        views.paid(username, rid);
+      }
+    }
+
+    String failed() {
+      return "Failed to pay for reservation " + rid + "\n";
+    }
+  }
+
+  /**
+   * Group commit for bookings and payments. Sessions queue their writes and wait; a single
+   * committer thread takes the first waiting write, gathers the ones that arrive within
+   * maxWaitNanos of it, up to maxBatch, and runs them on one pooled connection as one
+   * transaction, so many bookings share one commit and its log flush. A batch that fails
+   * after its conflict retries is split in halves, and the halves are committed separately,
+   * down to single writes; only the write that keeps failing gets a failure result.
+   */
+  class GroupCommit implements Runnable {
+    private static final long IDLE_POLL_MS = 100;
+
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final LinkedBlockingQueue<GroupWrite> queue = new LinkedBlockingQueue<GroupWrite>();
+    private final Thread committer;
+    private volatile boolean running = true;
+
+    final LongAdder batches = new LongAdder();
+    final LongAdder writes = new LongAdder();
+    final LongAdder splits = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    // The error of the most recent failed write, for diagnosis
+    volatile SQLException lastFailure;
+    final AtomicInteger largestBatch = new AtomicInteger();
+
+    GroupCommit(int maxBatch, long maxWaitMicros) {
+      this.maxBatch = Math.max(1, maxBatch);
+      this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+      committer = new Thread(this, "flightapp-group-commit");
+      committer.setDaemon(true);
+      committer.start();
+    }
+
+    /**
+     * Queues the write and waits for the batch it lands in to commit. Returns the write's
+     * own result.
+     */
+    String submit(GroupWrite w) {
+      queue.add(w);
+      if (!running && queue.remove(w)) {
+        // the committer is stopping and may not see it; commit it alone
+        commitBatch(w.shard, Collections.singletonList(w));
+      }
+      return w.result.join();
+    }
+
+    public void run() {
+      ArrayList<GroupWrite> batch = new ArrayList<GroupWrite>(maxBatch);
+      while (running || !queue.isEmpty()) {
+        try {
+          GroupWrite first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          // a write that already waited maxWaitNanos only picks up the writes queued behind it
+          long deadline = first.enqueued + maxWaitNanos;
+          while (batch.size() < maxBatch) {
+            GroupWrite next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+        } catch (InterruptedException e) {
+          // not expected; commit what is queued and end
+          running = false;
+        }
+        if (batch.isEmpty()) {
+          continue;
+        }
+        long now = System.nanoTime();
+        for (GroupWrite w : batch) {
+          metrics.groupCommitWait.record(now - w.enqueued);
+        }
+        batches.increment();
+        writes.add(batch.size());
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        try {
+          for (Shard shard : shards) {
+            ArrayList<GroupWrite> part = new ArrayList<GroupWrite>();
+            for (GroupWrite w : batch) {
+              if (w.shard == shard) {
+                part.add(w);
+              }
+            }
+            if (!part.isEmpty()) {
+              commitBatch(shard, part);
+            }
+          }
+        } catch (Throwable e) {
+          // the committer must outlive any one batch; whoever is still waiting gets a failure
+          for (GroupWrite w : batch) {
+            w.result.complete(w.failed());
+          }
+        }
+        batch.clear();
+      }
+    }
+
+    /**
+     * Runs the writes as one transaction on their shard and completes each with its result. Conflicts are
+     * retried as for transaction_book; any other failure splits the batch.
+     */
+    void commitBatch(Shard shard, List<GroupWrite> batch) {
+      PooledConnection pc = null;
+      SQLException failure = null;
+      try {
+        pc = shard.pool.acquire();
+        inTransaction(pc, new TransactionWork<Void>() {
+          public Void run(PooledConnection tx) throws SQLException {
+            for (GroupWrite w : batch) {
+              w.outcome = w.run(tx);
+            }
+            return null;
+          }
+        });
+      } catch (SQLException e) {
+        // inTransaction rolled back; the pool closes a connection it could not return to autocommit
+        failure = e;
+      } catch (Throwable e) {
+        // a write that failed outside JDBC left its transaction open; the pool closes that connection
+        failure = new SQLException("Group write failed", e);
+      } finally {
+        if (pc != null) {
+          pc.owner.release(pc);
+        }
+      }
+
+      if (failure == null) {
+        for (GroupWrite w : batch) {
+          try {
+            w.committed();
+          } catch (RuntimeException e) {
+            // the write is committed, but the cached listings may have missed it
+            ReservationCache views = reservationCache;
+            if (views != null) {
+              views.clear();
+            }
+          }
+          w.result.complete(w.outcome);
+        }
+      } else if (batch.size() == 1) {
+        failures.increment();
+        lastFailure = failure;
+        batch.get(0).result.complete(batch.get(0).failed());
+      } else {
+        splits.increment();
+        int half = batch.size() / 2;
+        commitBatch(shard, batch.subList(0, half));
+        commitBatch(shard, batch.subList(half, batch.size()));
+      }
+    }
+
+    /**
+     * Commits the writes already queued and ends the committer thread.
+     */
+    void stop() {
+      running = false;
+      try {
+        committer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Admission of one transaction by admission control; released when the transaction ends.
+   */
+  class Permit {
+    private final AdmissionControl.Gate gate;
+    private final long start;
+
+    Permit(AdmissionControl.Gate gate, long start) {
+      this.gate = gate;
+      this.start = start;
+    }
+
+    void release() {
+      if (gate != null) {
+        gate.release(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * One Gate per transaction class, each with a concurrency limit and a bounded FIFO queue,
+   * so a spike of searches queues and sheds on its own instead of taking every connection.
+   * Limits adapt to latency in the spirit of TCP congestion control: after each window of
+   * completions, a class whose smoothed latency exceeds TOLERANCE times its best smoothed
+   * latency cuts its limit by DECREASE, and a class that used its whole limit at good latency
+   * gains one. When bookings, payments or cancellations slow down, searches and the account
+   * class are cut as well, so those writes get the connections back first.
+   *
+   * The write classes may each use every connection. The other classes split the connections
+   * left after RESERVED_SHARE of them, and since limits never grow past their maximum, searches
+   * and account requests together leave those connections to the writes. Cancellations are a
+   * write class: they release seats and refund the balance, and holding them back would keep
+   * seats from the bookings waiting for them.
+   */
+  class AdmissionControl {
+    private static final double TOLERANCE = 2.0;
+    private static final double DECREASE = 0.8;
+    // Weight of the newest latency in the smoothed latency
+    private static final double SMOOTHING = 0.1;
+    // Growth of the best latency per window, so a lasting slowdown becomes the new baseline
+    private static final double BASELINE_DRIFT = 1.01;
+    private static final int MIN_WINDOW = 8;
+    // Part of the connections only the write classes may use
+    private static final double RESERVED_SHARE = 0.25;
+
+    final Gate[] gates = new Gate[ADMISSION_CLASSES];
+
+    AdmissionControl(int connections, int queueLength, long maxWaitMillis) {
+      int all = Math.max(1, connections);
+      int reserved = Math.max(1, (int) (all * RESERVED_SHARE));
+      // searches get two thirds of the rest, the account class the other third
+      int open = Math.max(2, all - reserved);
+      int account = Math.max(1, open / 3);
+      gates[ADMIT_SEARCH] = new Gate(open - account, queueLength, maxWaitMillis, false);
+      gates[ADMIT_BOOK] = new Gate(all, queueLength, maxWaitMillis, true);
+      gates[ADMIT_PAY] = new Gate(all, queueLength, maxWaitMillis, true);
+      gates[ADMIT_CANCEL] = new Gate(all, queueLength, maxWaitMillis, true);
+      gates[ADMIT_ACCOUNT] = new Gate(account, queueLength, maxWaitMillis, false);
+    }
+
+    // A booking, payment or cancellation window was slow; make room for them
+    void yieldToPriority() {
+      gates[ADMIT_SEARCH].decrease();
+      gates[ADMIT_ACCOUNT].decrease();
+    }
+
+    class Gate {
+      private final int maxLimit;
+      private final int queueLength;
+      private final long maxWaitNanos;
+      private final boolean priority;
+      private final ReentrantLock lock = new ReentrantLock();
+      // Waiters are signalled in arrival order
+      private final Condition turn = lock.newCondition();
+
+      private double limit;
+      private int running = 0;
+      private int waiting = 0;
+      private double meanNanos = 0;
+      private double bestNanos = Double.MAX_VALUE;
+      private int window = 0;
+
+      final LongAdder rejected = new LongAdder();
+
+      Gate(int maxLimit, int queueLength, long maxWaitMillis, boolean priority) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+        this.queueLength = queueLength;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.priority = priority;
+      }
+
+      /**
+       * Admits the caller, after waiting in the queue if the class is at its limit. Returns
+       * false, without admitting, if the queue is full or the wait exceeds maxWaitNanos.
+       */
+      boolean acquire() {
+        lock.lock();
+        try {
+          // nobody passes requests already queued
+          if (waiting == 0 && running < (int) limit) {
+            running++;
+            return true;
+          }
+          if (waiting >= queueLength) {
+            rejected.increment();
+            return false;
+          }
+          waiting++;
+          try {
+            long left = maxWaitNanos;
+            while (running >= (int) limit) {
+              if (left <= 0) {
+                rejected.increment();
+                return false;
+              }
+              left = turn.awaitNanos(left);
+            }
+            running++;
+            return true;
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+          } finally {
+            waiting--;
+            // a waiter that gave up may have been the one signalled
+            if (waiting > 0 && running < (int) limit) {
+              turn.signal();
+            }
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      /**
+       * Ends an admitted transaction that ran for nanos, and adjusts the limit at the end of
+       * each window of completions.
+       */
+      void release(long nanos) {
+        boolean slow = false;
+        lock.lock();
+        try {
+          boolean full = running >= (int) limit;
+          running--;
+          meanNanos = meanNanos == 0 ? nanos : meanNanos + SMOOTHING * (nanos - meanNanos);
+          if (++window >= Math.max(MIN_WINDOW, (int) limit)) {
+            window = 0;
+            bestNanos = Math.min(bestNanos * BASELINE_DRIFT, meanNanos);
+            if (meanNanos > TOLERANCE * bestNanos) {
+              limit = Math.max(1, limit * DECREASE);
+              slow = true;
+            } else if (full || waiting > 0) {
+              limit = Math.min(maxLimit, limit + 1);
+            }
+          }
+          if (waiting > 0 && running < (int) limit) {
+            turn.signal();
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (slow && priority) {
+          yieldToPriority();
+        }
+      }
+
+      void decrease() {
+        lock.lock();
+        try {
+          limit = Math.max(1, limit * DECREASE);
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      int limit() {
+        lock.lock();
+        try {
+          return (int) limit;
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      int queued() {
+        lock.lock();
+        try {
+          return waiting;
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Seats left per flight, as last observed from SeatInventory by this JVM. Only a sold-out
+   * reading is acted on, and only for SOLD_OUT_TTL_MS, since cancellations made through
+   * other JVMs are not seen here. SeatInventory stays the authority for every booking.
+   */
+  class SeatCounters {
+    private static final long SOLD_OUT_TTL_MS = 1000;
+
+    private ConcurrentHashMap<Integer, SeatCount> counts = new ConcurrentHashMap<Integer, SeatCount>();
+
+    class SeatCount {
+      final AtomicInteger remaining = new AtomicInteger();
+      volatile long observedAt;
+    }
+
+    boolean soldOut(int fid) {
+      SeatCount c = counts.get(fid);
+      return c != null && c.remaining.get() <= 0
+          && System.currentTimeMillis() - c.observedAt < SOLD_OUT_TTL_MS;
+    }
+
+    void observe(int fid, int remaining) {
+      SeatCount c = counts.get(fid);
+      if (c == null) {
+        SeatCount created = new SeatCount();
+        c = counts.putIfAbsent(fid, created);
+        if (c == null) {
+          c = created;
+        }
+      }
+      c.remaining.set(remaining);
+      c.observedAt = System.currentTimeMillis();
+      Availability open = availability;
+      if (open != null) {
+        open.update(fid, remaining > 0);
+      }
+    }
+
+    void clear() {
+      counts.clear();
+    }
+  }
+
+  /**
+   * Which flights have seats left, one bitset per day. A day holds its fids sorted and one
+   * bit per fid in that order, so a lookup is a binary search and a bit test, and a day of
+   * a few thousand flights takes a few kilobytes. Bits change as this JVM books, cancels or
+   * sees a flight sold out; like SeatCounters it does not see other JVMs, so it only narrows
+   * searches and SeatInventory stays the authority for every booking.
+   */
+  class Availability {
+    private final Day[] days = new Day[32];
+
+    class Day {
+      final int[] fids;
+      final AtomicLongArray bits;
+
+      Day(int[] fids) {
+        this.fids = fids;
+        this.bits = new AtomicLongArray((fids.length + 63) / 64);
+      }
+
+      boolean get(int i) {
+        return (bits.get(i >>> 6) & (1L << i)) != 0;
+      }
+
+      void set(int i, boolean on) {
+        long mask = 1L << i;
+        while (true) {
+          long word = bits.get(i >>> 6);
+          long next = on ? word | mask : word & ~mask;
+          if (word == next || bits.compareAndSet(i >>> 6, word, next)) {
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Builds the bitsets from (fid, day, seats left) rows; flights are sorted into days here.
+     */
+    Availability(List<int[]> flights) {
+      int[] counts = new int[days.length];
+      for (int[] f : flights) {
+        counts[f[1]]++;
+      }
+      int[][] fids = new int[days.length][];
+      for (int d = 0; d < days.length; d++) {
+        fids[d] = new int[counts[d]];
+        counts[d] = 0;
+      }
+      for (int[] f : flights) {
+        fids[f[1]][counts[f[1]]++] = f[0];
+      }
+      for (int d = 0; d < days.length; d++) {
+        if (fids[d].length > 0) {
+          Arrays.sort(fids[d]);
+          days[d] = new Day(fids[d]);
+        }
+      }
+      for (int[] f : flights) {
+        update(f[1], f[0], f[2] > 0);
+      }
+    }
+
+    /**
+     * False only if the flight is known to be sold out. Flights added since the bitsets were
+     * built count as available.
+     */
+    boolean available(Flight f) {
+      Day day = f.dayOfMonth >= 0 && f.dayOfMonth < days.length ? days[f.dayOfMonth] : null;
+      if (day == null) {
+        return true;
+      }
+      int i = Arrays.binarySearch(day.fids, f.fid);
+      return i < 0 || day.get(i);
+    }
+
+    /**
+     * Records whether the flight has seats left. Callers only know the fid, so the days are
+     * searched for it; booking and cancelling are round trips anyway.
+     */
+    void update(int fid, boolean hasSeats) {
+      for (int d = 0; d < days.length; d++) {
+        if (update(d, fid, hasSeats)) {
+          return;
+        }
+      }
+    }
+
+    private boolean update(int dayOfMonth, int fid, boolean hasSeats) {
+      Day day = days[dayOfMonth];
+      int i = day == null ? -1 : Arrays.binarySearch(day.fids, fid);
+      if (i < 0) {
+        return false;
+      }
+      day.set(i, hasSeats);
+      return true;
+    }
+
+    /**
+     * Marks every flight available again, after clearTables.
+     */
+    void reset() {
+      for (Day day : days) {
+        if (day != null) {
+          for (int i = 0; i < day.fids.length; i++) {
+            day.set(i, true);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes PBKDF2 password hashes on a fixed number of threads so that login storms cannot
+   * take every core away from search and booking. Each hashing thread keeps its own
+   * SecretKeyFactory. Requests beyond the queue capacity are rejected instead of piling up.
+   */
+  class PasswordHasher {
+    private static final String SALT = "1234";
+
+    private ThreadPoolExecutor executor;
+    private ThreadLocal<SecretKeyFactory> factories = new ThreadLocal<SecretKeyFactory>();
+    final LongAdder count = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    PasswordHasher(int threads, int queueCapacity) {
+      executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "password-hasher");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+
+    CompletableFuture<byte[]> hash(final String password) {
+      final long queued = System.nanoTime();
+      try {
+        return CompletableFuture.supplyAsync(new java.util.function.Supplier<byte[]>() {
+          public byte[] get() {
+            long start = System.nanoTime();
+            waitNanos.add(start - queued);
+            try {
+              KeySpec spec = new PBEKeySpec(password.toCharArray(), SALT.getBytes(), HASH_STRENGTH, KEY_LENGTH);
+              return factory().generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+              throw new CompletionException(e);
+            } finally {
+              long elapsed = System.nanoTime() - start;
+              count.increment();
+              totalNanos.add(elapsed);
+              maxNanos.accumulateAndGet(elapsed, Math::max);
+            }
+          }
+        }, executor);
+      } catch (RejectedExecutionException e) {
+        CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+        failed.completeExceptionally(e);
+        return failed;
+      }
+    }
+
+    private SecretKeyFactory factory() throws NoSuchAlgorithmException {
+      SecretKeyFactory factory = factories.get();
+      if (factory == null) {
+        factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        factories.set(factory);
+      }
+      return factory;
+    }
+
+    int queueDepth() {
+      return executor.getQueue().size();
+    }
+
+    void shutdown() {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Prepared statements for one connection, keyed by their SQL text. A statement is prepared
+   * on first use and afterwards handed back with its parameters cleared, so each SQL string
+   * costs one server round trip per connection.
+   */
+  class StatementCache {
+    private Connection connection;
+    private HashMap<String, PreparedStatement> cache = new HashMap<String, PreparedStatement>();
+    private IdentityHashMap<PreparedStatement, LatencyHistogram> histograms = new IdentityHashMap<PreparedStatement, LatencyHistogram>();
+
+    StatementCache(Connection connection) {
+      this.connection = connection;
+    }
+
+    /**
+     * Returns the statement for sql. name identifies the statement in the metrics; SQL
+     * strings built for different sizes of the same operation share one name.
+     */
+    PreparedStatement get(String name, String sql) throws SQLException {
+      PreparedStatement ps = cache.get(sql);
+      if (ps != null) {
+        metrics.statementCacheHits.increment();
+        ps.clearParameters();
+        return ps;
+      }
+      metrics.statementCacheMisses.increment();
+      ps = connection.prepareStatement(sqlServer ? sql : portable(sql));
+      cache.put(sql, ps);
+      histograms.put(ps, metrics.statement(name));
+      return ps;
+    }
+
+    LatencyHistogram histogram(PreparedStatement ps) {
+      return histograms.get(ps);
+    }
+
+    /**
+     * The statements are written for SQL Server. The one construct the embedded H2 database
+     * of the tools lacks is OUTPUT INSERTED, which returns the rows a write changed; H2 reads
+     * them from the write as a FINAL TABLE. "INSERT ... OUTPUT INSERTED.a, INSERTED.b VALUES ..."
+     * becomes "SELECT a, b FROM FINAL TABLE (INSERT ... VALUES ...)", and the same for UPDATE
+     * with WHERE. H2 1.4 may skip the write of such a statement when it is run again, so Query
+     * needs H2 2.x.
+     */
+    String portable(String sql) {
+      int output = sql.indexOf(" OUTPUT INSERTED.");
+      if (output < 0) {
+        return sql;
+      }
+      int end = sql.length();
+      for (String clause : new String[] {" VALUES", " WHERE ", " FROM "}) {
+        int at = sql.indexOf(clause, output);
+        if (at >= 0 && at < end) {
+          end = at;
+        }
+      }
+      String columns = sql.substring(output + " OUTPUT ".length(), end).replace("INSERTED.", "");
+      return "SELECT " + columns + " FROM FINAL TABLE (" + sql.substring(0, output) + sql.substring(end) + ")";
+    }
+
+    void close() {
+      for (PreparedStatement ps : cache.values()) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // the connection is going away, nothing left to release
+        }
+      }
+      cache.clear();
+      histograms.clear();
+    }
+  }
+
+  /**
+   * Flights that are not canceled, grouped by day of month and origin city. Each adjacency
+   * list is sorted by actual_time, then fid, so searches return the same order as the SQL
+   * queries in transaction_search.
+   */
+  class FlightIndex {
+    private HashMap<Integer, HashMap<String, ArrayList<Flight>>> days = new HashMap<Integer, HashMap<String, ArrayList<Flight>>>();
+
+    void add(Flight f) {
+      HashMap<String, ArrayList<Flight>> origins = days.get(f.dayOfMonth);
+      if (origins == null) {
+        origins = new HashMap<String, ArrayList<Flight>>();
+        days.put(f.dayOfMonth, origins);
+      }
+      String key = cityKey(f.originCity);
+      ArrayList<Flight> out = origins.get(key);
+      if (out == null) {
+        out = new ArrayList<Flight>();
+        origins.put(key, out);
+      }
+      out.add(f);
+    }
+
+    void sort() {
+      Comparator<Flight> byTime = new Comparator<Flight>() {
+        public int compare(Flight a, Flight b) {
+          if (a.time != b.time) {
+            return Integer.compare(a.time, b.time);
+          }
+          return Integer.compare(a.fid, b.fid);
+        }
+      };
+      for (HashMap<String, ArrayList<Flight>> origins : days.values()) {
+        for (ArrayList<Flight> out : origins.values()) {
+          out.sort(byTime);
+          out.trimToSize();
+        }
+      }
+    }
+
+    /**
+     * Returns the flights leaving the given city on the given day, sorted by actual_time.
+     */
+    List<Flight> departures(int day, String city) {
+      HashMap<String, ArrayList<Flight>> origins = days.get(day);
+      if (origins == null) {
+        return Collections.emptyList();
+      }
+      ArrayList<Flight> out = origins.get(cityKey(city));
+      if (out == null) {
+        return Collections.emptyList();
+      }
+      return out;
+    }
+
+    /**
+     * Every flight of the given day.
+     */
+    List<Flight> flights(int day) {
+      ArrayList<Flight> out = new ArrayList<Flight>();
+      HashMap<String, ArrayList<Flight>> origins = days.get(day);
+      if (origins != null) {
+        for (ArrayList<Flight> departing : origins.values()) {
+          out.addAll(departing);
+        }
+      }
+      return out;
+    }
+
+    // City names compare case-insensitively, like the default SQL Server collation
+    private String cityKey(String city) {
+      return city.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds the shortest direct flights, up to limit, in the order of the direct query of
+     * transaction_search: actual_time, then fid.
+     */
+    void direct(SearchResults results, String originCity, String destinationCity, int dayOfMonth, int limit) {
+      direct(results, originCity, destinationCity, dayOfMonth, limit, null);
+    }
+
+    /**
+     * Like direct, skipping the flights open says are sold out; open may be null.
+     */
+    void direct(SearchResults results, String originCity, String destinationCity, int dayOfMonth, int limit,
+        Availability open) {
+      String dest = cityKey(destinationCity);
+      for (Flight f : departures(dayOfMonth, originCity)) {
+        if (results.directRows() >= limit) {
+          break;
+        }
+        if (cityKey(f.destCity).equals(dest) && (open == null || open.available(f))) {
+          results.addDirect(results.addLeg(f));
+        }
+      }
+    }
+
+    /**
+     * Adds the shortest one-stop itineraries, up to remaining, in the order of the one-stop
+     * query of transaction_search: total duration, first fid, second fid.
+     */
+    void oneStop(SearchResults results, String originCity, String destinationCity, int dayOfMonth, int remaining) {
+      oneStop(results, originCity, destinationCity, dayOfMonth, remaining, null);
+    }
+
+    /**
+     * Like oneStop, skipping connections with a leg open says is sold out; open may be null.
+     */
+    void oneStop(SearchResults results, String originCity, String destinationCity, int dayOfMonth, int remaining,
+        Availability open) {
+      if (remaining <= 0) {
+        return;
+      }
+      String dest = cityKey(destinationCity);
+      List<Flight> first = departures(dayOfMonth, originCity);
+
+      // Keep the best `remaining` connections in a max-heap; both lists are sorted by
+      // actual_time, so scanning stops once a leg alone is longer than the worst kept pair.
+      Comparator<Flight[]> order = new Comparator<Flight[]>() {
+        public int compare(Flight[] a, Flight[] b) {
+          int c = Integer.compare(a[0].time + a[1].time, b[0].time + b[1].time);
+          if (c == 0) {
+            c = Integer.compare(a[0].fid, b[0].fid);
+          }
+          if (c == 0) {
+            c = Integer.compare(a[1].fid, b[1].fid);
+          }
+          return c;
+        }
+      };
+      PriorityQueue<Flight[]> best = new PriorityQueue<Flight[]>(remaining, Collections.reverseOrder(order));
+      for (Flight f1 : first) {
+        if (best.size() == remaining && f1.time > total(best.peek())) {
+          break;
+        }
+        if (open != null && !open.available(f1)) {
+          continue;
+        }
+        for (Flight f2 : departures(dayOfMonth, f1.destCity)) {
+          if (best.size() == remaining && f1.time + f2.time > total(best.peek())) {
+            break;
+          }
+          if (!cityKey(f2.destCity).equals(dest) || (open != null && !open.available(f2))) {
+            continue;
+          }
+          Flight[] pair = new Flight[] {f1, f2};
+          if (best.size() < remaining) {
+            best.add(pair);
+          } else if (order.compare(pair, best.peek()) < 0) {
+            best.poll();
+            best.add(pair);
+          }
+        }
+      }
+
+      ArrayList<Flight[]> pairs = new ArrayList<Flight[]>(best);
+      pairs.sort(order);
+      for (Flight[] pair : pairs) {
+        results.addOneStop(results.addLeg(pair[0]), results.addLeg(pair[1]));
+      }
+    }
+
+    private int total(Flight[] pair) {
+      return pair[0].time + pair[1].time;
+    }
+  }
+
+  /**
+   * Finds the k shortest routes of up to maxLegs flights between two cities over one day of
+   * the flight index. A route never visits a city twice. Routes grow one leg per round; each
+   * round's frontier is split over the fork/join pool. A partial route is dropped once its
+   * duration plus the shortest possible rest of the trip is longer than the k-th best
+   * complete route found so far.
+   */
+  class RouteSearch {
+    // Frontier slices at most this long are expanded without forking
+    private static final int SPLIT_THRESHOLD = 64;
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+    private FlightIndex index;
+    private int day;
+    private String origin;
+    private String dest;
+    private int maxLegs;
+    private int k;
+
+    // Per city, the shortest duration to dest with at most h more legs, indexed by h
+    private HashMap<String, int[]> toDest = new HashMap<String, int[]>();
+
+    // The best complete routes so far, worst on top, and the duration of the worst once k are kept
+    private PriorityQueue<Route> best;
+    private volatile int bound = Integer.MAX_VALUE;
+
+    private Comparator<Route> order = new Comparator<Route>() {
+      public int compare(Route a, Route b) {
+        int c = Integer.compare(a.time, b.time);
+        if (c == 0) {
+          c = Integer.compare(a.legs, b.legs);
+        }
+        if (c == 0) {
+          int[] fa = a.fids();
+          int[] fb = b.fids();
+          for (int i = 0; i < fa.length && c == 0; i++) {
+            c = Integer.compare(fa[i], fb[i]);
+          }
+        }
+        return c;
+      }
+    };
+
+    RouteSearch(FlightIndex index, int day, String originCity, String destinationCity, int maxLegs, int k) {
+      this.index = index;
+      this.day = day;
+      this.origin = originCity;
+      this.dest = index.cityKey(destinationCity);
+      this.maxLegs = maxLegs;
+      this.k = k;
+      this.best = new PriorityQueue<Route>(Math.max(1, Math.min(k, 1024)), Collections.reverseOrder(order));
+    }
+
+    /**
+     * The routes found, shortest first.
+     */
+    ArrayList<Itinerary> run() {
+      ArrayList<Itinerary> out = new ArrayList<Itinerary>();
+      if (k <= 0) {
+        return out;
+      }
+      computeBounds();
+      ArrayList<Route> frontier = new ArrayList<Route>();
+      for (Flight f : index.departures(day, origin)) {
+        if (!extend(frontier, null, f)) {
+          break;
+        }
+      }
+      while (!frontier.isEmpty()) {
+        frontier = ForkJoinPool.commonPool().invoke(new Expand(frontier, 0, frontier.size()));
+      }
+
+      ArrayList<Route> routes = new ArrayList<Route>(best);
+      routes.sort(order);
+      for (Route r : routes) {
+        Flight[] legs = new Flight[r.legs];
+        for (Route at = r; at != null; at = at.prev) {
+          legs[at.legs - 1] = at.leg;
+        }
+        out.add(new Itinerary(r.time, legs));
+      }
+      return out;
+    }
+
+    /**
+     * Fills toDest by relaxing every flight of the day once per leg allowed.
+     */
+    private void computeBounds() {
+      List<Flight> flights = index.flights(day);
+      toDest.put(dest, new int[maxLegs + 1]);
+      for (int h = 1; h <= maxLegs; h++) {
+        for (Flight f : flights) {
+          int[] to = toDest.get(index.cityKey(f.destCity));
+          if (to == null || to[h - 1] >= UNREACHABLE) {
+            continue;
+          }
+          String from = index.cityKey(f.originCity);
+          int[] bounds = toDest.get(from);
+          if (bounds == null) {
+            bounds = new int[maxLegs + 1];
+            Arrays.fill(bounds, UNREACHABLE);
+            toDest.put(from, bounds);
+          }
+          bounds[h] = Math.min(bounds[h], f.time + to[h - 1]);
+        }
+        for (int[] bounds : toDest.values()) {
+          bounds[h] = Math.min(bounds[h], bounds[h - 1]);
+        }
+      }
+    }
+
+    /**
+     * Adds prev followed by f to next, unless it revisits a city or cannot beat the bound.
+     * Returns false once f, and so every later departure, is too long.
+     */
+    private boolean extend(List<Route> next, Route prev, Flight f) {
+      int legs = prev == null ? 1 : prev.legs + 1;
+      int time = prev == null ? f.time : prev.time + f.time;
+      if (time > bound) {
+        return false;
+      }
+      String to = index.cityKey(f.destCity);
+      int[] rest = toDest.get(to);
+      if (rest == null || time + rest[maxLegs - legs] > bound) {
+        return true;
+      }
+      for (Route at = prev; at != null; at = at.prev) {
+        if (index.cityKey(at.leg.originCity).equals(to)) {
+          return true;
+        }
+      }
+      next.add(new Route(prev, f, time, legs));
+      return true;
+    }
+
+    private synchronized void offer(Route r) {
+      if (best.size() < k) {
+        best.add(r);
+      } else if (order.compare(r, best.peek()) < 0) {
+        best.poll();
+        best.add(r);
+      } else {
+        return;
+      }
+      if (best.size() == k) {
+        bound = best.peek().time;
+      }
+    }
+
+    /**
+     * Expands frontier[lo, hi): complete routes are offered, the others extended by one leg.
+     */
+    @SuppressWarnings("serial")
+    class Expand extends RecursiveTask<ArrayList<Route>> {
+      private List<Route> frontier;
+      private int lo;
+      private int hi;
+
+      Expand(List<Route> frontier, int lo, int hi) {
+        this.frontier = frontier;
+        this.lo = lo;
+        this.hi = hi;
+      }
+
+      protected ArrayList<Route> compute() {
+        if (hi - lo > SPLIT_THRESHOLD) {
+          int mid = (lo + hi) >>> 1;
+          Expand left = new Expand(frontier, lo, mid);
+          left.fork();
+          ArrayList<Route> next = new Expand(frontier, mid, hi).compute();
+          next.addAll(left.join());
+          return next;
+        }
+        ArrayList<Route> next = new ArrayList<Route>();
+        for (int i = lo; i < hi; i++) {
+          Route r = frontier.get(i);
+          if (index.cityKey(r.leg.destCity).equals(dest)) {
+            offer(r);
+            continue;
+          }
+          if (r.legs == maxLegs || r.time > bound) {
+            continue;
+          }
+          for (Flight f : index.departures(day, r.leg.destCity)) {
+            if (!extend(next, r, f)) {
+              break;
+            }
+          }
+        }
+        return next;
+      }
+    }
+  }
+
+  /**
+   * A route under construction: its last leg and the route before it.
+   */
+  class Route {
+    final Route prev;
+    final Flight leg;
+    final int time;
+    final int legs;
+
+    Route(Route prev, Flight leg, int time, int legs) {
+      this.prev = prev;
+      this.leg = leg;
+      this.time = time;
+      this.legs = legs;
+    }
+
+    int[] fids() {
+      int[] fids = new int[legs];
+      for (Route at = this; at != null; at = at.prev) {
+        fids[at.legs - 1] = at.leg.fid;
+      }
+      return fids;
+    }
+  }
+}
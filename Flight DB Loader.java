@@ -0,0 +1,426 @@
+/* This file loads the Flights database from CSV exports using Java Database Connectivity API. The reference
+ * tables (Carriers, Months, Weekdays) are loaded first, then Flights is streamed through a bounded pipeline:
+ * one thread reads the file in chunks, several threads parse and validate rows, and one thread inserts them
+ * with batched prepared statements. SeatInventory rows are created alongside each flight.
+ *
+ * Usage: java flightapp.FlightLoader <jdbc url> <flights.csv> [options]
+ *   --carriers <csv>   cid,name
+ *   --months <csv>     mid,month
+ *   --weekdays <csv>   did,day_of_week
+ *   --threads <n>      parser threads (default: available processors - 1)
+ *   --batch <n>        rows per executeBatch (default 1000)
+ *   --commit <n>       rows per commit (default 20000)
+ *   --shard <i>/<n>    load only the flights of days d with (d - 1) % n == i, for database i of
+ *                      Query(String[] urls, ...); run once per database, each with the reference tables
+ */
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Streams large CSV exports into the Flights tables
+ */
+public class FlightLoader {
+  // Lines handed to a parser at a time
+  private static final int CHUNK_LINES = 4096;
+
+  // Columns of Flights, in the order of the CSV export and of the CREATE TABLE statement
+  private static final int FLIGHT_COLUMNS = 18;
+
+  private static final String INSERT_FLIGHT = "INSERT INTO Flights(fid, month_id, day_of_month, day_of_week_id,"
+      + " carrier_id, flight_num, origin_city, origin_state, dest_city, dest_state, departure_delay, taxi_out,"
+      + " arrival_delay, canceled, actual_time, distance, capacity, price)"
+      + " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_SEATS = "INSERT INTO SeatInventory(fid, capacity, booked) VALUES(?, ?, 0)";
+
+  private Connection conn;
+  private int threads;
+  private int batchSize;
+  private int commitSize;
+
+  // Foreign keys of Flights, read back from the database before loading
+  private HashSet<String> carriers = new HashSet<String>();
+  private HashSet<Integer> months = new HashSet<Integer>();
+  private HashSet<Integer> weekdays = new HashSet<Integer>();
+
+  // Only the days of this shard are loaded, see setShard
+  private int shard = 0;
+  private int shards = 1;
+
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong otherShards = new AtomicLong();
+  private long loaded = 0;
+
+  public FlightLoader(Connection conn, int threads, int batchSize, int commitSize) {
+    this.conn = conn;
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.commitSize = commitSize;
+  }
+
+  /**
+   * Loads only the flights of the days database shard of shards holds in
+   * Query(String[] urls, ...): day d belongs to shard (d - 1) % shards.
+   */
+  public void setShard(int shard, int shards) {
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Usage: java flightapp.FlightLoader <jdbc url> <flights.csv> [--carriers csv]"
+          + " [--months csv] [--weekdays csv] [--threads n] [--batch n] [--commit n] [--shard i/n]");
+      return;
+    }
+    HashMap<String, String> options = new HashMap<String, String>();
+    for (int i = 2; i + 1 < args.length; i += 2) {
+      options.put(args[i], args[i + 1]);
+    }
+    int threads = Integer.parseInt(options.getOrDefault("--threads",
+        "" + Math.max(1, Runtime.getRuntime().availableProcessors() - 1)));
+    int batch = Integer.parseInt(options.getOrDefault("--batch", "1000"));
+    int commit = Integer.parseInt(options.getOrDefault("--commit", "20000"));
+
+    Connection conn = DriverManager.getConnection(args[0]);
+    try {
+      FlightLoader loader = new FlightLoader(conn, threads, batch, commit);
+      if (options.containsKey("--shard")) {
+        String[] shard = options.get("--shard").split("/");
+        loader.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+      }
+      if (options.containsKey("--carriers")) {
+        loader.loadReference(new File(options.get("--carriers")), "INSERT INTO Carriers(cid, name) VALUES(?, ?)", false);
+      }
+      if (options.containsKey("--months")) {
+        loader.loadReference(new File(options.get("--months")), "INSERT INTO Months(mid, [month]) VALUES(?, ?)", true);
+      }
+      if (options.containsKey("--weekdays")) {
+        loader.loadReference(new File(options.get("--weekdays")), "INSERT INTO Weekdays(did, day_of_week) VALUES(?, ?)", true);
+      }
+      loader.loadFlights(new File(args[1]));
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Loads a two-column reference table. The first column is an int key when intKey is true.
+   * A first line naming the key column of insert, or with a key that is not an int when
+   * intKey is true, is a header and skipped.
+   */
+  public void loadReference(File csv, String insert, boolean intKey) throws IOException, SQLException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8));
+    PreparedStatement ps = conn.prepareStatement(insert);
+    // first column of "INSERT INTO Table(key, value) ..."
+    String keyColumn = insert.substring(insert.indexOf('(') + 1, insert.indexOf(',')).trim();
+    int rows = 0;
+    try {
+      conn.setAutoCommit(false);
+      String line;
+      long lineNo = 0;
+      while ((line = in.readLine()) != null) {
+        lineNo++;
+        String[] f = splitCsv(line);
+        if (f.length < 2) {
+          continue;  // blank line
+        }
+        if (lineNo == 1 && (f[0].trim().equalsIgnoreCase(keyColumn) || (intKey && !isInt(f[0])))) {
+          continue;  // header
+        }
+        if (intKey && !isInt(f[0])) {
+          System.out.println("Skipping line " + lineNo + " of " + csv.getName() + ": key is not a number");
+          continue;
+        }
+        if (intKey) {
+          ps.setInt(1, Integer.parseInt(f[0].trim()));
+        } else {
+          ps.setString(1, f[0]);
+        }
+        ps.setString(2, f[1]);
+        ps.addBatch();
+        if (++rows % batchSize == 0) {
+          ps.executeBatch();
+        }
+      }
+      ps.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+      ps.close();
+      in.close();
+    }
+    System.out.println("Loaded " + rows + " rows from " + csv.getName());
+  }
+
+  /**
+   * Streams the Flights export into Flights and SeatInventory. Rows whose carrier, month or
+   * weekday is not in the reference tables are counted and skipped.
+   */
+  public void loadFlights(File csv) throws Exception {
+    readForeignKeys();
+
+    final BlockingQueue<Chunk> lines = new ArrayBlockingQueue<Chunk>(threads * 2);
+    final BlockingQueue<List<Object[]>> rows = new ArrayBlockingQueue<List<Object[]>>(threads * 2);
+    final List<Object[]> done = new ArrayList<Object[]>();
+
+    // First error that stopped a parser; the load fails once the other parsers are done
+    final AtomicReference<Exception> parserFailure = new AtomicReference<Exception>();
+
+    ExecutorService parsers = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      parsers.submit(new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          try {
+            while (true) {
+              Chunk chunk = lines.take();
+              if (chunk.lines == null) {
+                break;
+              }
+              rows.put(parse(chunk));
+            }
+          } catch (InterruptedException e) {
+            // the writer gave up and shut the parsers down; nobody counts markers any more
+            throw e;
+          } catch (Exception e) {
+            parserFailure.compareAndSet(null, e);
+          }
+          // the writer counts these markers, so every parser posts one unless it is interrupted
+          rows.put(done);
+          return null;
+        }
+      });
+    }
+
+    final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8), 1 << 20);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          long lineNo = 0;
+          ArrayList<String> chunk = new ArrayList<String>(CHUNK_LINES);
+          String line;
+          while ((line = in.readLine()) != null) {
+            lineNo++;
+            chunk.add(line);
+            if (chunk.size() == CHUNK_LINES) {
+              lines.put(new Chunk(lineNo - chunk.size() + 1, chunk));
+              chunk = new ArrayList<String>(CHUNK_LINES);
+            }
+          }
+          if (!chunk.isEmpty()) {
+            lines.put(new Chunk(lineNo - chunk.size() + 1, chunk));
+          }
+        } catch (Exception e) {
+          System.out.println("Failed to read " + csv.getName() + ": " + e);
+        } finally {
+          try {
+            for (int i = 0; i < threads; i++) {
+              lines.put(new Chunk(0, null));
+            }
+          } catch (InterruptedException e) {
+            // the writer gave up and is shutting the parsers down
+          }
+        }
+      }
+    }, "csv-reader");
+    // if every parser failed, nothing drains lines and the reader may block for good
+    reader.setDaemon(true);
+
+    long start = System.nanoTime();
+    long lastReport = start;
+    reader.start();
+    PreparedStatement flights = conn.prepareStatement(INSERT_FLIGHT);
+    PreparedStatement seats = conn.prepareStatement(INSERT_SEATS);
+    try {
+      conn.setAutoCommit(false);
+      int finished = 0;
+      long uncommitted = 0;
+      int batched = 0;
+      while (finished < threads) {
+        List<Object[]> batch = rows.take();
+        if (batch == done) {
+          finished++;
+          continue;
+        }
+        for (Object[] row : batch) {
+          for (int c = 0; c < FLIGHT_COLUMNS; c++) {
+            flights.setObject(c + 1, row[c]);
+          }
+          flights.addBatch();
+          seats.setInt(1, (Integer) row[0]);
+          seats.setInt(2, (Integer) row[16]);
+          seats.addBatch();
+          if (++batched == batchSize) {
+            flights.executeBatch();
+            seats.executeBatch();
+            batched = 0;
+          }
+          loaded++;
+          if (++uncommitted == commitSize) {
+            flights.executeBatch();
+            seats.executeBatch();
+            batched = 0;
+            conn.commit();
+            uncommitted = 0;
+          }
+        }
+        long now = System.nanoTime();
+        if (now - lastReport > TimeUnit.SECONDS.toNanos(5)) {
+          report(start, now);
+          lastReport = now;
+        }
+      }
+      if (parserFailure.get() != null) {
+        conn.rollback();
+        throw new IOException("Failed to parse " + csv.getName() + "; rows since the last commit were not loaded",
+            parserFailure.get());
+      }
+      flights.executeBatch();
+      seats.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+      flights.close();
+      seats.close();
+      parsers.shutdownNow();
+      reader.interrupt();
+      in.close();
+    }
+    report(start, System.nanoTime());
+  }
+
+  private void report(long start, long now) {
+    double seconds = (now - start) / 1e9;
+    System.out.println(String.format("Loaded %d flights, rejected %d, left %d to other shards, %.0f rows/second",
+        loaded, rejected.get(), otherShards.get(), seconds > 0 ? loaded / seconds : 0.0));
+  }
+
+  private void readForeignKeys() throws SQLException {
+    Statement stm = conn.createStatement();
+    try {
+      ResultSet rs = stm.executeQuery("SELECT cid FROM Carriers");
+      while (rs.next()) {
+        carriers.add(rs.getString(1));
+      }
+      rs.close();
+      rs = stm.executeQuery("SELECT mid FROM Months");
+      while (rs.next()) {
+        months.add(rs.getInt(1));
+      }
+      rs.close();
+      rs = stm.executeQuery("SELECT did FROM Weekdays");
+      while (rs.next()) {
+        weekdays.add(rs.getInt(1));
+      }
+      rs.close();
+    } finally {
+      stm.close();
+    }
+  }
+
+  /**
+   * Parses and validates one chunk of the Flights export. Each row is returned as the 18
+   * column values of Flights, ints as Integer and text as String.
+   */
+  private List<Object[]> parse(Chunk chunk) {
+    ArrayList<Object[]> out = new ArrayList<Object[]>(chunk.lines.size());
+    long lineNo = chunk.firstLine;
+    for (String line : chunk.lines) {
+      String[] f = splitCsv(line);
+      if (lineNo == 1 && f.length > 0 && !isInt(f[0])) {
+        // the header line; its first column is fid
+        lineNo++;
+        continue;
+      }
+      try {
+        if (f.length != FLIGHT_COLUMNS) {
+          throw new IllegalArgumentException("expected " + FLIGHT_COLUMNS + " columns, found " + f.length);
+        }
+        Object[] row = new Object[FLIGHT_COLUMNS];
+        for (int c = 0; c < FLIGHT_COLUMNS; c++) {
+          boolean text = c == 4 || (c >= 6 && c <= 9);
+          row[c] = text ? f[c] : Integer.valueOf(f[c].trim());
+        }
+        if (!months.contains(row[1]) || !weekdays.contains(row[3]) || !carriers.contains(row[4])) {
+          throw new IllegalArgumentException("unknown month, weekday or carrier");
+        }
+        if (Math.floorMod((Integer) row[2] - 1, shards) == shard) {
+          out.add(row);
+        } else {
+          otherShards.incrementAndGet();
+        }
+      } catch (IllegalArgumentException e) {
+        if (rejected.incrementAndGet() <= 10) {
+          System.out.println("Skipping line " + lineNo + ": " + e.getMessage());
+        }
+      }
+      lineNo++;
+    }
+    return out;
+  }
+
+  /**
+   * Splits one CSV line. Fields may be quoted with double quotes, with "" inside a quoted
+   * field standing for one quote.
+   */
+  static String[] splitCsv(String line) {
+    ArrayList<String> fields = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          sb.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          sb.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(sb.toString());
+        sb.setLength(0);
+      } else {
+        sb.append(c);
+      }
+    }
+    fields.add(sb.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  private static boolean isInt(String s) {
+    try {
+      Integer.parseInt(s.trim());
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Consecutive lines of the export, with the line number of the first one.
+   */
+  static class Chunk {
+    long firstLine;
+    List<String> lines;
+
+    Chunk(long firstLine, List<String> lines) {
+      this.firstLine = firstLine;
+      this.lines = lines;
+    }
+  }
+}
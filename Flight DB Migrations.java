@@ -0,0 +1,214 @@
+/* This file upgrades an existing Flights database in numbered steps. Flights DB Create Tables.sql creates the
+ * tables with their primary keys only; the migrations below add the indexes the Query transactions rely on.
+ * The SchemaVersion table records which steps a database has, so running the tool again applies only the
+ * new ones. Each step has an undo, to compare a database with and without it.
+ *
+ * Usage: java flightapp.FlightMigrations <jdbc url> [--target <version>]
+ *   --target <version>   migrate up or down to this version (default: latest)
+ */
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Versioned schema migrations for the Flights database
+ */
+public class FlightMigrations {
+  private static final String CREATE_VERSION_TABLE = "CREATE TABLE SchemaVersion(version int primary key,"
+      + " description varchar(200) not null, applied_at datetime not null)";
+
+  /**
+   * One step of the schema. SQL Server gets filtered and covering indexes; other databases,
+   * such as the embedded one of the benchmarks, get the same key columns without them.
+   */
+  public static class Migration {
+    final int version;
+    final String description;
+    final String[] sqlServer;
+    final String[] generic;
+    final String[] undo;
+
+    Migration(int version, String description, String[] sqlServer, String[] generic, String[] undo) {
+      this.version = version;
+      this.description = description;
+      this.sqlServer = sqlServer;
+      this.generic = generic;
+      this.undo = undo;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  /**
+   * Every migration, in version order.
+   */
+  public static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+      // search.direct seeks (origin_city, dest_city, day_of_month) and reads the rows already in
+      // ORDER BY actual_time, fid; search.indirect seeks its second leg the same way
+      new Migration(1, "Flights route index for transaction_search",
+          new String[] {"CREATE INDEX IX_Flights_Route ON Flights(origin_city, dest_city, day_of_month, actual_time, fid)"
+              + " INCLUDE (carrier_id, flight_num, capacity, price) WHERE canceled = 0"},
+          new String[] {"CREATE INDEX IX_Flights_Route ON Flights(origin_city, dest_city, day_of_month, actual_time, fid)"},
+          new String[] {"DROP INDEX IX_Flights_Route ON Flights"}),
+      // the first leg of search.indirect knows only origin_city and day_of_month
+      new Migration(2, "Flights departures index for one-stop searches",
+          new String[] {"CREATE INDEX IX_Flights_Departures ON Flights(origin_city, day_of_month, actual_time)"
+              + " INCLUDE (dest_city, carrier_id, flight_num, capacity, price) WHERE canceled = 0"},
+          new String[] {"CREATE INDEX IX_Flights_Departures ON Flights(origin_city, day_of_month, actual_time)"},
+          new String[] {"DROP INDEX IX_Flights_Departures ON Flights"}),
+      // book.check_day, reservations.list, pay.find and cancel.find all start from username
+      new Migration(3, "Reservations index by user for book, pay, cancel and reservations",
+          new String[] {"CREATE INDEX IX_Reservations_User ON Reservations(username) INCLUDE (paid, cancelled, fid1, fid2)"},
+          new String[] {"CREATE INDEX IX_Reservations_User ON Reservations(username)"},
+          new String[] {"DROP INDEX IX_Reservations_User ON Reservations"}),
+      // counting live reservations per flight, as the SeatInventory seed does, and deleting
+      // a flight probe the legs of Reservations and ReservationLegs
+      new Migration(4, "Reservation legs indexes by flight",
+          new String[] {"CREATE INDEX IX_Reservations_Fid1 ON Reservations(fid1) WHERE cancelled = 0",
+              "CREATE INDEX IX_Reservations_Fid2 ON Reservations(fid2) WHERE cancelled = 0 AND fid2 IS NOT NULL",
+              "CREATE INDEX IX_ReservationLegs_Fid ON ReservationLegs(fid)"},
+          new String[] {"CREATE INDEX IX_Reservations_Fid1 ON Reservations(fid1)",
+              "CREATE INDEX IX_Reservations_Fid2 ON Reservations(fid2)",
+              "CREATE INDEX IX_ReservationLegs_Fid ON ReservationLegs(fid)"},
+          new String[] {"DROP INDEX IX_Reservations_Fid1 ON Reservations",
+              "DROP INDEX IX_Reservations_Fid2 ON Reservations",
+              "DROP INDEX IX_ReservationLegs_Fid ON ReservationLegs"})));
+
+  private Connection conn;
+  private boolean sqlServer;
+
+  public FlightMigrations(Connection conn) throws SQLException {
+    this.conn = conn;
+    this.sqlServer = conn.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT).contains("sql server");
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: java flightapp.FlightMigrations <jdbc url> [--target version]");
+      return;
+    }
+    int target = latestVersion();
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--target")) {
+        target = Integer.parseInt(args[i + 1]);
+      }
+    }
+    Connection conn = DriverManager.getConnection(args[0]);
+    try {
+      FlightMigrations migrations = new FlightMigrations(conn);
+      int from = migrations.currentVersion();
+      migrations.migrateTo(target);
+      System.out.println("Schema version " + from + " -> " + migrations.currentVersion());
+    } finally {
+      conn.close();
+    }
+  }
+
+  public static int latestVersion() {
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+  }
+
+  /**
+   * Highest version applied to the database, 0 if none is.
+   */
+  public int currentVersion() throws SQLException {
+    ensureVersionTable();
+    Statement stm = conn.createStatement();
+    try {
+      ResultSet rs = stm.executeQuery("SELECT MAX(version) FROM SchemaVersion");
+      int version = rs.next() ? rs.getInt(1) : 0;
+      rs.close();
+      return version;
+    } finally {
+      stm.close();
+    }
+  }
+
+  /**
+   * Applies the migrations above the current version up to target, or undoes those above
+   * target, newest first. Each step commits on its own together with its SchemaVersion row,
+   * so a failed step leaves the database at the previous version.
+   */
+  public void migrateTo(int target) throws SQLException {
+    int current = currentVersion();
+    if (target >= current) {
+      for (Migration m : MIGRATIONS) {
+        if (m.version > current && m.version <= target) {
+          apply(m, sqlServer ? m.sqlServer : m.generic, true);
+        }
+      }
+    } else {
+      for (int i = MIGRATIONS.size() - 1; i >= 0; i--) {
+        Migration m = MIGRATIONS.get(i);
+        if (m.version <= current && m.version > target) {
+          apply(m, sqlServer ? m.undo : genericUndo(m.undo), false);
+        }
+      }
+    }
+  }
+
+  private void apply(Migration m, String[] sql, boolean up) throws SQLException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    Statement stm = conn.createStatement();
+    try {
+      for (String s : sql) {
+        stm.executeUpdate(s);
+      }
+      PreparedStatement ps;
+      if (up) {
+        ps = conn.prepareStatement("INSERT INTO SchemaVersion(version, description, applied_at) VALUES(?, ?, CURRENT_TIMESTAMP)");
+        ps.setInt(1, m.version);
+        ps.setString(2, m.description);
+      } else {
+        ps = conn.prepareStatement("DELETE FROM SchemaVersion WHERE version = ?");
+        ps.setInt(1, m.version);
+      }
+      ps.executeUpdate();
+      ps.close();
+      conn.commit();
+      System.out.println((up ? "Applied " : "Undid ") + m.version + ": " + m.description);
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      stm.close();
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  // DROP INDEX name ON table is SQL Server syntax; elsewhere the index name alone is enough
+  private String[] genericUndo(String[] undo) {
+    String[] out = new String[undo.length];
+    for (int i = 0; i < undo.length; i++) {
+      out[i] = undo[i].substring(0, undo[i].indexOf(" ON "));
+    }
+    return out;
+  }
+
+  private void ensureVersionTable() throws SQLException {
+    ResultSet rs = conn.getMetaData().getTables(null, null, "%", new String[] {"TABLE"});
+    try {
+      while (rs.next()) {
+        if (rs.getString("TABLE_NAME").equalsIgnoreCase("SchemaVersion")) {
+          return;
+        }
+      }
+    } finally {
+      rs.close();
+    }
+    Statement stm = conn.createStatement();
+    try {
+      stm.executeUpdate(CREATE_VERSION_TABLE);
+    } finally {
+      stm.close();
+    }
+  }
+}
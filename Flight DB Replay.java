@@ -0,0 +1,540 @@
+/* This file records and replays sequences of Query commands, to reproduce a production load on a test database.
+ * A Recording wraps the sessions of an application and writes every login, search, book, pay, cancel and
+ * reservations command to a log, one tab-separated line per command; the tool can also generate a synthetic log.
+ * Replay runs each recorded session on its own virtual thread, optionally cloned to reach thousands of sessions,
+ * and paces all commands together to a target rate. It reports throughput, latency percentiles per transaction
+ * and the booking failure and conflict rates. By default it runs on an embedded in-memory database, so capacity
+ * planning needs no server and no network.
+ *
+ * Needs Java 21 or later, for the virtual threads of the replay and of Query. The embedded database needs
+ * the H2 driver (Maven com.h2database:h2, 2.x) on the class path:
+ *   java -cp classes:h2-2.2.224.jar flightapp.FlightReplay --generate 1000 --copies 4 --rate 500
+ *
+ * Usage: java flightapp.FlightReplay [options]
+ *   --url <jdbc url>       database to run on (default: embedded H2 in SQL Server mode)
+ *   --schema <file>        schema script (default: Flights DB Create Tables.sql)
+ *   --cities <n>           cities in the generated dataset (default 40)
+ *   --days <n>             days of flights (default 28)
+ *   --flights <n>          flights per day (default 2000)
+ *   --log <file>           command log to replay; generated first if missing (default replay.log)
+ *   --generate <n>         sessions of a generated log (default 1000)
+ *   --copies <n>           replay every session this many times, each copy as its own customer (default 1)
+ *   --rate <n>             target commands per second over all sessions, 0 for no pacing (default 2000)
+ *   --pool <n>             database connections of the Query (default 64)
+ *   --index                answer searches from the in-memory flight index
+ *   --admission <n>        turn on admission control with queues of n requests per transaction class
+ */
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Record and replay of Query command sequences
+ */
+public class FlightReplay {
+  private static final String DEFAULT_URL = "jdbc:h2:mem:flightreplay;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+  private static final String LOG_HEADER = "# flightapp replay log v1: session, offset us, command, arguments";
+
+  // Every customer of a replay gets this password and enough money for every payment
+  private static final String PASSWORD = "password";
+  private static final int BALANCE = 100000000;
+
+  private Query query;
+  private LinkedHashMap<String, List<Command>> sessions;
+  private int copies;
+  private double rate;
+
+  // Replayed sessions, one per recorded session and copy
+  private ArrayList<Replayer> replayers = new ArrayList<Replayer>();
+
+  // Latencies per transaction, shared by every session; each Recorder is locked while adding
+  private ConcurrentHashMap<String, FlightBenchmark.Recorder> recorders = new ConcurrentHashMap<String, FlightBenchmark.Recorder>();
+
+  // Booking outcomes
+  private AtomicLong booked = new AtomicLong();
+  private AtomicLong sameDay = new AtomicLong();
+  private AtomicLong bookBusy = new AtomicLong();
+  private AtomicLong bookFailed = new AtomicLong();
+  // not logged in, or no such itinerary: the session's earlier login or search went wrong
+  private AtomicLong bookSkipped = new AtomicLong();
+
+  private long elapsedNanos;
+
+  public FlightReplay(Query query, LinkedHashMap<String, List<Command>> sessions, int copies, double rate) {
+    this.query = query;
+    this.sessions = sessions;
+    this.copies = copies;
+    this.rate = rate;
+  }
+
+  public static void main(String[] args) throws Exception {
+    HashMap<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--index")) {
+        options.put(args[i], "true");
+      } else if (i + 1 < args.length) {
+        options.put(args[i], args[++i]);
+      }
+    }
+    String url = options.getOrDefault("--url", DEFAULT_URL);
+    FlightDataset dataset = new FlightDataset(42,
+        Integer.parseInt(options.getOrDefault("--cities", "40")),
+        Integer.parseInt(options.getOrDefault("--days", "28")),
+        Integer.parseInt(options.getOrDefault("--flights", "2000")));
+    File log = new File(options.getOrDefault("--log", "replay.log"));
+    if (!log.exists()) {
+      int generated = Integer.parseInt(options.getOrDefault("--generate", "1000"));
+      generate(log, dataset, generated, 7);
+      System.out.println("Generated " + generated + " sessions in " + log);
+    }
+    LinkedHashMap<String, List<Command>> sessions = load(log);
+
+    Connection admin = DriverManager.getConnection(url);
+    FlightDataset.createSchema(admin, new File(options.getOrDefault("--schema", "Flights DB Create Tables.sql")));
+    long start = System.nanoTime();
+    dataset.populate(admin);
+    System.out.println("Generated " + dataset.getFlights() + " flights in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+    Query query = new Query(url, new Properties(), Integer.parseInt(options.getOrDefault("--pool", "64")));
+    if (options.containsKey("--index")) {
+      query.loadFlightIndex();
+    }
+    if (options.containsKey("--admission")) {
+      query.enableAdmissionControl(Integer.parseInt(options.getOrDefault("--pool", "64")),
+          Integer.parseInt(options.get("--admission")), 100);
+    }
+    FlightReplay replay = new FlightReplay(query, sessions,
+        Integer.parseInt(options.getOrDefault("--copies", "1")),
+        Double.parseDouble(options.getOrDefault("--rate", "2000")));
+    try {
+      replay.createCustomers();
+      replay.run();
+      replay.report();
+    } finally {
+      query.close();
+      admin.close();
+    }
+  }
+
+  /**
+   * One command of a recorded session. offsetMicros is the time since the recording
+   * started; replay keeps the order of a session's commands but paces them by its own rate.
+   */
+  public static class Command {
+    final String session;
+    final long offsetMicros;
+    final String name;
+    final String[] args;
+
+    Command(String session, long offsetMicros, String name, String... args) {
+      this.session = session;
+      this.offsetMicros = offsetMicros;
+      this.name = name;
+      this.args = args;
+    }
+
+    /**
+     * Parses a log line, or returns null for a blank line or a comment.
+     */
+    static Command parse(String line) {
+      if (line.isEmpty() || line.startsWith("#")) {
+        return null;
+      }
+      String[] fields = line.split("\t", -1);
+      if (fields.length < 3) {
+        throw new IllegalArgumentException("Malformed replay log line: " + line);
+      }
+      return new Command(fields[0], Long.parseLong(fields[1]), fields[2], Arrays.copyOfRange(fields, 3, fields.length));
+    }
+
+    String format() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(session).append('\t').append(offsetMicros).append('\t').append(name);
+      for (String a : args) {
+        sb.append('\t').append(a);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Writes the commands of many sessions to one log. Passwords are not recorded, and
+   * reservation IDs are written as the position of the booking within its session, since
+   * a replay creates new reservations with new IDs.
+   */
+  public static class Recording implements Closeable {
+    private PrintWriter out;
+    private long startNanos = System.nanoTime();
+
+    public Recording(File file) throws IOException {
+      out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+      out.println(LOG_HEADER);
+    }
+
+    /**
+     * A session of query whose commands are recorded under id.
+     */
+    public RecordingSession session(Query query, String id) {
+      return new RecordingSession(this, query, id);
+    }
+
+    synchronized void write(String session, String name, String... args) {
+      out.println(new Command(session, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), name, args).format());
+    }
+
+    public synchronized void close() {
+      out.close();
+    }
+  }
+
+  /**
+   * A Query session that records the commands it runs. Each method runs the transaction
+   * of the same name and returns its result.
+   */
+  public static class RecordingSession {
+    private Recording recording;
+    private Query query;
+    private String id;
+    private Query.Session session;
+    // reservation ID -> position of the booking in this session
+    private HashMap<Integer, Integer> bookings = new HashMap<Integer, Integer>();
+
+    RecordingSession(Recording recording, Query query, String id) {
+      this.recording = recording;
+      this.query = query;
+      this.id = id;
+      this.session = query.openSession();
+    }
+
+    public String login(String username, String password) {
+      recording.write(id, "login", username);
+      return query.transaction_login(session, username, password);
+    }
+
+    public String search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+      recording.write(id, "search", originCity, destinationCity, "" + directFlight, "" + dayOfMonth, "" + numberOfItineraries);
+      return query.transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    }
+
+    public String book(int itineraryId) {
+      recording.write(id, "book", "" + itineraryId);
+      String result = query.transaction_book(session, itineraryId);
+      if (result.startsWith("Booked")) {
+        bookings.put(Integer.parseInt(result.substring(result.lastIndexOf(' ') + 1).trim()), bookings.size());
+      }
+      return result;
+    }
+
+    public String pay(int reservationId) {
+      recording.write(id, "pay", "" + ordinal(reservationId));
+      return query.transaction_pay(session, reservationId);
+    }
+
+    public String cancel(int reservationId) {
+      recording.write(id, "cancel", "" + ordinal(reservationId));
+      return query.transaction_cancel(session, reservationId);
+    }
+
+    public String reservations() {
+      recording.write(id, "reservations");
+      return query.transaction_reservations(session);
+    }
+
+    // -1 for a reservation this session did not book; its replay fails the same way
+    private int ordinal(int reservationId) {
+      Integer ordinal = bookings.get(reservationId);
+      return ordinal == null ? -1 : ordinal;
+    }
+  }
+
+  /**
+   * Writes a synthetic log of the given number of sessions. Each customer logs in, searches
+   * a few times, books most of the time and then mostly pays; a share of the searches go
+   * between a few popular cities, so bookings compete for the same flights.
+   */
+  public static void generate(File file, FlightDataset dataset, int sessions, long seed) throws IOException {
+    Random random = new Random(seed);
+    int hot = Math.min(4, dataset.getCities());
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+    try {
+      out.println(LOG_HEADER);
+      for (int s = 0; s < sessions; s++) {
+        String id = "s" + s;
+        long at = random.nextInt(60000000);
+        out.println(new Command(id, at, "login", "user" + s).format());
+        int trips = 1 + random.nextInt(3);
+        int firstDay = random.nextInt(dataset.getDays());
+        int bookings = 0;
+        for (int t = 0; t < trips; t++) {
+          int cities = random.nextInt(10) < 3 ? hot : dataset.getCities();
+          int origin = random.nextInt(cities);
+          int dest = (origin + 1 + random.nextInt(cities - 1)) % cities;
+          // one day per trip, so the same-day rule does not reject the bookings of a session
+          int day = 1 + (firstDay + t) % dataset.getDays();
+          for (int q = 1 + random.nextInt(3); q > 0; q--) {
+            at += 200000 + random.nextInt(1800000);
+            out.println(new Command(id, at, "search", dataset.city(origin), dataset.city(dest),
+                "" + (random.nextInt(2) == 0), "" + day, "" + (5 + random.nextInt(16))).format());
+          }
+          if (random.nextInt(10) < 6) {
+            at += 500000 + random.nextInt(3000000);
+            out.println(new Command(id, at, "book", "" + random.nextInt(3)).format());
+            if (random.nextInt(10) < 8) {
+              at += 500000 + random.nextInt(3000000);
+              out.println(new Command(id, at, "pay", "" + bookings).format());
+            }
+            if (random.nextInt(10) == 0) {
+              at += 500000 + random.nextInt(3000000);
+              out.println(new Command(id, at, "cancel", "" + bookings).format());
+            }
+            bookings++;
+          }
+        }
+        if (random.nextInt(2) == 0) {
+          at += 200000 + random.nextInt(1800000);
+          out.println(new Command(id, at, "reservations").format());
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads a log and groups its commands by session, in the order of first appearance.
+   */
+  public static LinkedHashMap<String, List<Command>> load(File file) throws IOException {
+    LinkedHashMap<String, List<Command>> sessions = new LinkedHashMap<String, List<Command>>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Command c = Command.parse(line);
+        if (c == null) {
+          continue;
+        }
+        List<Command> commands = sessions.get(c.session);
+        if (commands == null) {
+          commands = new ArrayList<Command>();
+          sessions.put(c.session, commands);
+        }
+        commands.add(c);
+      }
+    } finally {
+      in.close();
+    }
+    return sessions;
+  }
+
+  // Copy 0 replays as the recorded customer; the others as customers of their own
+  private static String customer(String username, int copy) {
+    return copy == 0 ? username : username + "." + copy;
+  }
+
+  /**
+   * Creates every customer the log logs in as, for every copy. Not measured.
+   */
+  public void createCustomers() throws Exception {
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    for (List<Command> commands : sessions.values()) {
+      for (Command c : commands) {
+        if (c.name.equals("login")) {
+          for (int copy = 0; copy < copies; copy++) {
+            names.add(customer(c.args[0], copy));
+          }
+        }
+      }
+    }
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+    try {
+      for (final String name : names) {
+        pool.submit(new Runnable() {
+          public void run() {
+            query.transaction_createCustomer(query.openSession(), name, PASSWORD, BALANCE);
+          }
+        });
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.HOURS);
+    }
+    System.out.println("Created " + names.size() + " customers in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+  }
+
+  /**
+   * Replays one recorded session as one copy, on one virtual thread.
+   */
+  class Replayer implements Runnable {
+    final List<Command> commands;
+    final int copy;
+    final Query.Session session = query.openSession();
+    // reservation IDs of this replay, by position of the booking in the session
+    final ArrayList<Integer> bookings = new ArrayList<Integer>();
+    final AtomicLong next;
+    final long startNanos;
+    final long intervalNanos;
+
+    Replayer(List<Command> commands, int copy, AtomicLong next, long startNanos, long intervalNanos) {
+      this.commands = commands;
+      this.copy = copy;
+      this.next = next;
+      this.startNanos = startNanos;
+      this.intervalNanos = intervalNanos;
+    }
+
+    public void run() {
+      for (Command c : commands) {
+        // Each command takes the next slot of the shared schedule and is timed from it, so a
+        // database that falls behind shows as latency instead of a lower request rate
+        long scheduled = System.nanoTime();
+        if (intervalNanos > 0) {
+          scheduled = startNanos + next.getAndIncrement() * intervalNanos;
+          long wait;
+          while ((wait = scheduled - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        boolean ok;
+        try {
+          ok = execute(c);
+        } catch (RuntimeException e) {
+          ok = false;
+        }
+        record(c.name, System.nanoTime() - scheduled, ok);
+      }
+    }
+
+    boolean execute(Command c) {
+      if (c.name.equals("login")) {
+        return query.transaction_login(session, customer(c.args[0], copy), PASSWORD).startsWith("Logged in");
+      } else if (c.name.equals("search")) {
+        String result = query.transaction_search(session, c.args[0], c.args[1], Boolean.parseBoolean(c.args[2]),
+            Integer.parseInt(c.args[3]), Integer.parseInt(c.args[4]));
+        // a request turned away by admission control did no work and counts as failed
+        return !result.equals(Query.BUSY) && !result.startsWith("Failed");
+      } else if (c.name.equals("book")) {
+        String result = query.transaction_book(session, Integer.parseInt(c.args[0]));
+        if (result.startsWith("Booked")) {
+          bookings.add(Integer.parseInt(result.substring(result.lastIndexOf(' ') + 1).trim()));
+          booked.incrementAndGet();
+          return true;
+        }
+        // keep the positions of later bookings; pay and cancel of this one fail
+        bookings.add(-1);
+        if (result.equals(Query.BUSY)) {
+          bookBusy.incrementAndGet();
+        } else if (result.startsWith("You cannot book two flights in the same day")) {
+          sameDay.incrementAndGet();
+        } else if (result.startsWith("Booking failed")) {
+          bookFailed.incrementAndGet();
+        } else {
+          bookSkipped.incrementAndGet();
+        }
+        return false;
+      } else if (c.name.equals("pay")) {
+        return query.transaction_pay(session, reservation(c.args[0])).startsWith("Paid");
+      } else if (c.name.equals("cancel")) {
+        return query.transaction_cancel(session, reservation(c.args[0])).startsWith("Canceled");
+      } else if (c.name.equals("reservations")) {
+        String result = query.transaction_reservations(session);
+        return !result.equals(Query.BUSY) && !result.startsWith("Failed") && !result.startsWith("Cannot");
+      }
+      throw new IllegalArgumentException("Unknown command " + c.name);
+    }
+
+    private int reservation(String ordinal) {
+      int i = Integer.parseInt(ordinal);
+      return i >= 0 && i < bookings.size() ? bookings.get(i) : -1;
+    }
+  }
+
+  void record(String transaction, long nanos, boolean ok) {
+    FlightBenchmark.Recorder r = recorders.get(transaction);
+    if (r == null) {
+      recorders.putIfAbsent(transaction, new FlightBenchmark.Recorder());
+      r = recorders.get(transaction);
+    }
+    synchronized (r) {
+      r.add(nanos, ok);
+    }
+  }
+
+  /**
+   * Starts every session and copy at once on virtual threads and waits for all of them.
+   */
+  public void run() throws Exception {
+    long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+    AtomicLong next = new AtomicLong();
+    long start = System.nanoTime();
+    for (List<Command> commands : sessions.values()) {
+      for (int copy = 0; copy < copies; copy++) {
+        replayers.add(new Replayer(commands, copy, next, start, intervalNanos));
+      }
+    }
+    ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+    try {
+      for (Replayer r : replayers) {
+        pool.submit(r);
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.DAYS);
+    }
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Prints throughput and latency percentiles per transaction, then the booking outcomes
+   * and the serialization conflicts Query retried.
+   */
+  public void report() {
+    double seconds = elapsedNanos / 1e9;
+    long total = 0;
+    TreeMap<String, FlightBenchmark.Recorder> results = new TreeMap<String, FlightBenchmark.Recorder>(recorders);
+    for (FlightBenchmark.Recorder r : results.values()) {
+      Arrays.sort(r.samples, 0, r.count);
+      total += r.count;
+    }
+    System.out.println();
+    System.out.println("replay, " + replayers.size() + " session(s), " + total + " commands in "
+        + String.format("%.1f s, %.1f commands/s", seconds, seconds > 0 ? total / seconds : 0.0)
+        + (rate > 0 ? String.format(" (target %.1f)", rate) : " (unpaced)"));
+    System.out.println(String.format("  %-13s %10s %9s %9s %9s %9s %9s %9s %8s", "transaction", "ops/s",
+        "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "count", "failed"));
+    for (Map.Entry<String, FlightBenchmark.Recorder> e : results.entrySet()) {
+      FlightBenchmark.Recorder r = e.getValue();
+      if (r.count == 0) {
+        continue;
+      }
+      System.out.println(String.format("  %-13s %10.1f %9d %9d %9d %9d %9d %9d %8d", e.getKey(),
+          seconds > 0 ? r.count / seconds : 0.0, r.percentile(50) / 1000, r.percentile(90) / 1000,
+          r.percentile(99) / 1000, r.percentile(99.9) / 1000, r.samples[r.count - 1] / 1000, r.count, r.failures));
+    }
+    // only attempts that reached the seat claims count towards the failure rate
+    long attempts = booked.get() + bookFailed.get();
+    System.out.println(String.format("  bookings: %d booked, %d failed (%.2f%% of attempts), %d same day, %d busy,"
+        + " %d without login or itinerary", booked.get(), bookFailed.get(),
+        attempts > 0 ? 100.0 * bookFailed.get() / attempts : 0.0, sameDay.get(), bookBusy.get(), bookSkipped.get()));
+    if (query.getBookingLastFailure() != null) {
+      System.out.println("  last booking failure: " + query.getBookingLastFailure());
+    }
+    long writes = 0;
+    for (String t : new String[] {"book", "pay", "cancel"}) {
+      FlightBenchmark.Recorder r = results.get(t);
+      writes += r == null ? 0 : r.count;
+    }
+    System.out.println(String.format("  conflicts: %d (%.2f%% of writes), %d retries, %d retries exhausted",
+        query.getConflicts(), writes > 0 ? 100.0 * query.getConflicts() / writes : 0.0,
+        query.getRetries(), query.getRetriesExhausted()));
+    System.out.println("  busy: " + query.getAdmissionRejected() + " requests turned away by admission control");
+  }
+}
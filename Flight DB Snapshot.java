@@ -0,0 +1,261 @@
+/* This file saves the Flights table to a columnar binary file and maps it back into memory. A Query can build
+ * its in-memory flight index from the file instead of reading Flights through JDBC, so a restart does not
+ * depend on the database. The columns are plain int arrays, with carrier and city names replaced by indexes
+ * into small dictionaries; the reader maps the file and decodes only the dictionaries.
+ *
+ * Usage: java flightapp.FlightSnapshot <jdbc url>... <snapshot file>
+ *   With several urls, day d is taken from url (d - 1) % n, as Query(String[] urls, ...) spreads
+ *   the days, and the snapshot records n so only a Query over as many shards loads it.
+ */
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory-mapped columnar copy of the flights that are not canceled
+ */
+public class FlightSnapshot {
+  private static final int MAGIC = 0x464C5331;  // "FLS1"
+  // Version 2 added the shard count; version 1 files are snapshots of one database
+  private static final int VERSION = 2;
+
+  // Int columns, in file order; CARRIER, ORIGIN and DEST hold dictionary codes
+  private static final int FID = 0;
+  private static final int DAY = 1;
+  private static final int FLIGHT_NUM = 2;
+  private static final int TIME = 3;
+  private static final int CAPACITY = 4;
+  private static final int PRICE = 5;
+  private static final int CARRIER = 6;
+  private static final int ORIGIN = 7;
+  private static final int DEST = 8;
+  private static final int COLUMNS = 9;
+
+  private int rows;
+  private int shards;
+  private String[] carriers;
+  private String[] cities;
+  private IntBuffer[] columns = new IntBuffer[COLUMNS];
+
+  private FlightSnapshot() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Usage: java flightapp.FlightSnapshot <jdbc url>... <snapshot file>");
+      return;
+    }
+    Connection[] conns = new Connection[args.length - 1];
+    try {
+      for (int i = 0; i < conns.length; i++) {
+        conns[i] = DriverManager.getConnection(args[i]);
+      }
+      long start = System.nanoTime();
+      int rows = export(conns, new File(args[args.length - 1]));
+      System.out.println("Wrote " + rows + " flights to " + args[args.length - 1] + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    } finally {
+      for (Connection conn : conns) {
+        if (conn != null) {
+          conn.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the flights that are not canceled to file, ordered by day, origin city, duration
+   * and fid. Returns the number of flights written.
+   */
+  public static int export(Connection conn, File file) throws IOException, SQLException {
+    return export(new Connection[] {conn}, file);
+  }
+
+  /**
+   * Writes the flights that are not canceled of the shards to file, taking day d only from
+   * shards[(d - 1) % shards.length], the shard Query gives it. Rows are ordered by shard, then
+   * by day, origin city, duration and fid. Returns the number of flights written.
+   */
+  public static int export(Connection[] shards, File file) throws IOException, SQLException {
+    String load = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price"
+        + " FROM Flights WHERE canceled = 0 AND (day_of_month - 1) % ? = ?"
+        + " ORDER BY day_of_month, origin_city, actual_time, fid";
+    LinkedHashMap<String, Integer> carriers = new LinkedHashMap<String, Integer>();
+    LinkedHashMap<String, Integer> cities = new LinkedHashMap<String, Integer>();
+    int[][] columns = new int[COLUMNS][1024];
+    int rows = 0;
+
+    for (int shard = 0; shard < shards.length; shard++) {
+      PreparedStatement stm = shards[shard].prepareStatement(load);
+      try {
+        stm.setInt(1, shards.length);
+        stm.setInt(2, shard);
+        ResultSet rs = stm.executeQuery();
+        while (rs.next()) {
+          if (rows == columns[0].length) {
+            for (int c = 0; c < COLUMNS; c++) {
+              columns[c] = Arrays.copyOf(columns[c], rows * 2);
+            }
+          }
+          columns[FID][rows] = rs.getInt(1);
+          columns[DAY][rows] = rs.getInt(2);
+          columns[CARRIER][rows] = code(carriers, rs.getString(3));
+          columns[FLIGHT_NUM][rows] = rs.getInt(4);
+          columns[ORIGIN][rows] = code(cities, rs.getString(5));
+          columns[DEST][rows] = code(cities, rs.getString(6));
+          columns[TIME][rows] = rs.getInt(7);
+          columns[CAPACITY][rows] = rs.getInt(8);
+          columns[PRICE][rows] = rs.getInt(9);
+          rows++;
+        }
+        rs.close();
+      } finally {
+        stm.close();
+      }
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(rows);
+      out.writeInt(shards.length);
+      writeDictionary(out, carriers.keySet());
+      writeDictionary(out, cities.keySet());
+      // pad so the int columns are aligned
+      while (out.size() % 4 != 0) {
+        out.writeByte(0);
+      }
+      for (int c = 0; c < COLUMNS; c++) {
+        for (int i = 0; i < rows; i++) {
+          out.writeInt(columns[c][i]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    return rows;
+  }
+
+  private static int code(HashMap<String, Integer> dictionary, String value) {
+    Integer code = dictionary.get(value);
+    if (code == null) {
+      code = dictionary.size();
+      dictionary.put(value, code);
+    }
+    return code;
+  }
+
+  private static void writeDictionary(DataOutputStream out, Collection<String> values) throws IOException {
+    out.writeInt(values.size());
+    for (String v : values) {
+      byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Maps a snapshot written by export. The columns stay in the mapped file; only the
+   * dictionaries are read onto the heap. Version 1 snapshots open as snapshots of one shard.
+   */
+  public static FlightSnapshot open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    MappedByteBuffer buf;
+    try {
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    int version = buf.getInt() == MAGIC ? buf.getInt() : -1;
+    if (version != 1 && version != VERSION) {
+      throw new IOException(file + " is not a flight snapshot of version 1 to " + VERSION);
+    }
+    FlightSnapshot snapshot = new FlightSnapshot();
+    snapshot.rows = buf.getInt();
+    snapshot.shards = version == 1 ? 1 : buf.getInt();
+    snapshot.carriers = readDictionary(buf);
+    snapshot.cities = readDictionary(buf);
+    int at = (buf.position() + 3) & ~3;
+    for (int c = 0; c < COLUMNS; c++) {
+      ByteBuffer column = buf.duplicate();
+      column.position(at + c * snapshot.rows * 4);
+      column.limit(at + (c + 1) * snapshot.rows * 4);
+      snapshot.columns[c] = column.slice().asIntBuffer();
+    }
+    return snapshot;
+  }
+
+  private static String[] readDictionary(ByteBuffer buf) {
+    String[] values = new String[buf.getInt()];
+    for (int i = 0; i < values.length; i++) {
+      byte[] bytes = new byte[buf.getInt()];
+      buf.get(bytes);
+      values[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return values;
+  }
+
+  /**
+   * Number of flights in the snapshot. Rows are numbered from 0.
+   */
+  public int size() {
+    return rows;
+  }
+
+  /**
+   * Number of databases the flights were exported from; see export(Connection[], File).
+   */
+  public int shards() {
+    return shards;
+  }
+
+  public int fid(int row) {
+    return columns[FID].get(row);
+  }
+
+  public int dayOfMonth(int row) {
+    return columns[DAY].get(row);
+  }
+
+  public int flightNum(int row) {
+    return columns[FLIGHT_NUM].get(row);
+  }
+
+  public int actualTime(int row) {
+    return columns[TIME].get(row);
+  }
+
+  public int capacity(int row) {
+    return columns[CAPACITY].get(row);
+  }
+
+  public int price(int row) {
+    return columns[PRICE].get(row);
+  }
+
+  /**
+   * Carrier of the row. Every row of a carrier returns the same String.
+   */
+  public String carrierId(int row) {
+    return carriers[columns[CARRIER].get(row)];
+  }
+
+  /**
+   * Origin city of the row. Every row of a city returns the same String.
+   */
+  public String originCity(int row) {
+    return cities[columns[ORIGIN].get(row)];
+  }
+
+  public String destCity(int row) {
+    return cities[columns[DEST].get(row)];
+  }
+}
@@ -0,0 +1,136 @@
+/* This file creates the stored procedures Flight DB Java.java calls when useStoredProcedures is on.
+Each one runs a whole book, pay or cancel transaction on the server and returns its outcome as one
+result set, so the transaction costs a single round trip. Balances and seat counters are changed with
+conditional updates, never read into the client and written back. Run after Flights DB Create Tables.sql.
+*/
+
+/* Books up to four legs on one day for @username.
+Returns (status, rid, fid, seats_left): status 0 with one row per leg and its seats left, 1 if the user
+already has a reservation that day, or 2 with one row per leg that was full. */
+CREATE OR ALTER PROCEDURE BookItinerary
+	@username varchar(20), @day int, @fid1 int, @fid2 int = NULL, @fid3 int = NULL, @fid4 int = NULL
+AS
+BEGIN
+	SET NOCOUNT ON;
+	SET XACT_ABORT ON;
+	DECLARE @legs TABLE(leg int, fid int);
+	DECLARE @claimed TABLE(fid int, seats_left int);
+	DECLARE @rid int;
+
+	INSERT INTO @legs VALUES (1, @fid1), (2, @fid2), (3, @fid3), (4, @fid4);
+	DELETE FROM @legs WHERE fid IS NULL;
+
+	IF EXISTS (SELECT * FROM Reservations R JOIN Flights F ON F.fid = R.fid1
+		WHERE R.username = @username AND F.day_of_month = @day)
+	BEGIN
+		SELECT 1 AS status, -1 AS rid, -1 AS fid, 0 AS seats_left;
+		RETURN;
+	END
+
+	BEGIN TRANSACTION;
+	UPDATE S SET booked = S.booked + 1
+	OUTPUT INSERTED.fid, INSERTED.capacity - INSERTED.booked INTO @claimed
+	FROM SeatInventory S JOIN @legs L ON S.fid = L.fid
+	WHERE S.booked < S.capacity;
+
+	IF (SELECT COUNT(*) FROM @claimed) < (SELECT COUNT(*) FROM @legs)
+	BEGIN
+		ROLLBACK;
+		SELECT 2 AS status, -1 AS rid, L.fid, 0 AS seats_left FROM @legs L
+		WHERE L.fid NOT IN (SELECT fid FROM @claimed);
+		RETURN;
+	END
+
+	INSERT INTO Reservations(username, paid, cancelled, fid1, fid2) VALUES(@username, 0, 0, @fid1, @fid2);
+	SET @rid = SCOPE_IDENTITY();
+	INSERT INTO ReservationLegs(rid, leg, fid) SELECT @rid, leg, fid FROM @legs WHERE leg > 2;
+	COMMIT;
+
+	SELECT 0 AS status, @rid AS rid, fid, seats_left FROM @claimed;
+END
+GO
+
+/* Pays reservation @rid of @username from the user's balance.
+Returns one row (status, balance, price): status 0 with the remaining balance, 1 if there is no unpaid
+reservation @rid of the user, or 2 with the balance that was too low. */
+CREATE OR ALTER PROCEDURE PayReservation
+	@username varchar(20), @rid int
+AS
+BEGIN
+	SET NOCOUNT ON;
+	SET XACT_ABORT ON;
+	DECLARE @price int, @balance int;
+
+	BEGIN TRANSACTION;
+	SELECT @price = F1.price + COALESCE(F2.price, 0)
+		+ (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLegs L JOIN Flights F ON L.fid = F.fid WHERE L.rid = R.rid)
+	FROM Reservations R WITH (UPDLOCK) JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid
+	WHERE R.rid = @rid AND R.username = @username AND R.paid = 0 AND R.cancelled = 0;
+
+	IF @price IS NULL
+	BEGIN
+		ROLLBACK;
+		SELECT 1 AS status, 0 AS balance, 0 AS price;
+		RETURN;
+	END
+
+	UPDATE Users SET @balance = balance = balance - @price WHERE username = @username AND balance >= @price;
+	IF @@ROWCOUNT = 0
+	BEGIN
+		ROLLBACK;
+		SELECT 2 AS status, balance, @price AS price FROM Users WHERE username = @username;
+		RETURN;
+	END
+
+	UPDATE Reservations SET paid = 1 WHERE rid = @rid;
+	COMMIT;
+
+	SELECT 0 AS status, @balance AS balance, @price AS price;
+END
+GO
+
+/* Cancels reservation @rid of @username, refunding it if it was paid and giving back its seats.
+Returns (status, fid, seats_left): status 0 with one row per leg and its seats left, or 1 if there is no
+live reservation @rid of the user. */
+CREATE OR ALTER PROCEDURE CancelReservation
+	@username varchar(20), @rid int
+AS
+BEGIN
+	SET NOCOUNT ON;
+	SET XACT_ABORT ON;
+	DECLARE @paid int, @price int;
+	DECLARE @released TABLE(fid int, seats_left int);
+
+	BEGIN TRANSACTION;
+	UPDATE Reservations SET @paid = paid, cancelled = 1
+	WHERE rid = @rid AND username = @username AND cancelled = 0;
+
+	IF @@ROWCOUNT = 0
+	BEGIN
+		ROLLBACK;
+		SELECT 1 AS status, -1 AS fid, 0 AS seats_left;
+		RETURN;
+	END
+
+	IF @paid = 1
+	BEGIN
+		SELECT @price = F1.price + COALESCE(F2.price, 0)
+			+ (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLegs L JOIN Flights F ON L.fid = F.fid WHERE L.rid = R.rid)
+		FROM Reservations R JOIN Flights F1 ON R.fid1 = F1.fid LEFT OUTER JOIN Flights F2 ON R.fid2 = F2.fid
+		WHERE R.rid = @rid;
+		UPDATE Users SET balance = balance + @price WHERE username = @username;
+	END
+
+	UPDATE S SET booked = S.booked - 1
+	OUTPUT INSERTED.fid, INSERTED.capacity - INSERTED.booked INTO @released
+	FROM SeatInventory S
+	WHERE S.booked > 0 AND S.fid IN (
+		SELECT fid1 FROM Reservations WHERE rid = @rid
+		UNION ALL SELECT fid2 FROM Reservations WHERE rid = @rid
+		UNION ALL SELECT fid FROM ReservationLegs WHERE rid = @rid);
+	COMMIT;
+
+	SELECT 0 AS status, fid, seats_left FROM @released
+	UNION ALL SELECT 0, -1, 0 WHERE NOT EXISTS (SELECT * FROM @released);
+END
+GO